@@ -0,0 +1,60 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import java.io.IOException;
+
+// Fills an index with synthetic file documents, laid out the way FileIndexer
+// lays them out, without going through Tika. Each directory /bench/dN holds
+// FILES_PER_DIRECTORY files.
+class BenchmarkIndex {
+
+    static final int FILES_PER_DIRECTORY = 100;
+
+    static String path (int doc) {
+        return directory(doc / FILES_PER_DIRECTORY) + "/" + ((doc % 2 == 0) ? "en" : "pl") + doc + ".txt";
+    }
+
+    static String directory (int dir) {
+        return "/bench/d" + dir;
+    }
+
+    static Document document (int doc, String text) {
+        String path = path(doc);
+        Document d = new Document();
+
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        String field = (doc % 2 == 0) ? "contentsen" : "contentspl";
+
+        d.add(new StringField("name", name, Field.Store.NO));
+        d.add(new BinaryDocValuesField("name", new BytesRef(name)));
+        d.add(new StringField("path", path, Field.Store.NO));
+        d.add(new BinaryDocValuesField("path", new BytesRef(path)));
+        d.add(new StringField("parent", path.substring(0, path.lastIndexOf('/')), Field.Store.NO));
+        d.add(new NumericDocValuesField("mtime", doc));
+        d.add(new NumericDocValuesField("size", text.length()));
+        d.add(new Field(field, text, FileIndexer.CONTENTS));
+        d.add(new StoredField(field, text));
+        d.add(new Field(SearchRequest.wordsField(field), text, FileIndexer.WORDS));
+        return d;
+    }
+
+    static String text (CorpusGenerator generator, int doc, int words) {
+        return generator.text((doc % 2 == 0) ? "en" : "pl", words);
+    }
+
+    static IndexWriter build (Directory dir, int docs, int words, long seed) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator(seed);
+        IndexWriter writer = DirectoriesWatcher.createIndexWriter(dir);
+        if (writer == null)
+            throw new IOException("IndexWriter not created.");
+
+        for (int i = 0; i < docs; i++) {
+            writer.addDocument(document(i, text(generator, i, words)));
+        }
+        writer.commit();
+        return writer;
+    }
+}
@@ -0,0 +1,142 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Synthetic Polish and English documents. The same seed always gives the same corpus,
+// so that benchmark runs can be compared with each other.
+class CorpusGenerator {
+
+    static final String[] ENGLISH = {
+            "the", "of", "and", "index", "search", "document", "file", "directory", "language", "system",
+            "query", "result", "writer", "reader", "segment", "merge", "commit", "watcher", "event", "change",
+            "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "report", "budget", "meeting",
+            "project", "schedule", "customer", "invoice", "contract", "analysis", "summary", "review", "draft", "final",
+            "running", "walked", "searching", "indexed", "documents", "changes", "universities", "people", "children", "written"
+    };
+
+    static final String[] POLISH = {
+            "i", "w", "na", "nie", "się", "jest", "dokument", "plik", "katalog", "język",
+            "wyszukiwanie", "wynik", "zapytanie", "indeks", "zmiana", "system", "umowa", "faktura", "raport", "spotkanie",
+            "zażółć", "gęślą", "jaźń", "szybki", "brązowy", "lis", "skacze", "przez", "leniwego", "psa",
+            "projekt", "harmonogram", "klient", "budżet", "analiza", "podsumowanie", "przegląd", "wersja", "końcowa", "robocza",
+            "dokumentów", "plikami", "katalogach", "zmianami", "wynikach", "uniwersytetu", "ludzie", "dzieci", "napisany", "czytał"
+    };
+
+    private final Random random;
+
+    CorpusGenerator (long seed) {
+        this.random = new Random(seed);
+    }
+
+    String text (String language, int words) {
+        String[] dictionary = language.equals("pl") ? POLISH : ENGLISH;
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < words; i++) {
+            sb.append(dictionary[random.nextInt(dictionary.length)]);
+            sb.append((i % 12 == 11) ? ".\n" : " ");
+        }
+        return sb.toString();
+    }
+
+    String word (String language) {
+        String[] dictionary = language.equals("pl") ? POLISH : ENGLISH;
+        return dictionary[random.nextInt(dictionary.length)];
+    }
+
+    // Files of the given type (txt/pdf/docx), alternately in English and Polish.
+    List<Path> corpus (Path dir, String type, int files, int words) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> paths = new ArrayList<>();
+
+        for (int i = 0; i < files; i++) {
+            String language = (i % 2 == 0) ? "en" : "pl";
+            Path file = dir.resolve(language + i + "." + type);
+            String text = text(language, words);
+
+            switch (type) {
+                case "pdf":
+                    writePdf(file, text);
+                    break;
+                case "docx":
+                    writeDocx(file, text);
+                    break;
+                default:
+                    Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+            }
+            paths.add(file);
+        }
+        return paths;
+    }
+
+    private static void writePdf (Path file, String text) throws IOException {
+        try (PDDocument pdf = new PDDocument()) {
+            String[] lines = foldToAscii(text).split("\n");
+            int line = 0;
+
+            while (line < lines.length) {
+                PDPage page = new PDPage();
+                pdf.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(pdf, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(12);
+                    content.newLineAtOffset(50, 750);
+                    for (int onPage = 0; onPage < 55 && line < lines.length; onPage++, line++) {
+                        content.showText(lines[line]);
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            pdf.save(file.toFile());
+        }
+    }
+
+    // the standard PDF fonts have no Polish letters
+    private static String foldToAscii (String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}", "").replace('ł', 'l').replace('Ł', 'L');
+    }
+
+    private static void writeDocx (Path file, String text) throws IOException {
+        try (XWPFDocument docx = new XWPFDocument();
+             OutputStream out = Files.newOutputStream(file)) {
+            for (String paragraph : text.split("\n")) {
+                docx.createParagraph().createRun().setText(paragraph);
+            }
+            docx.write(out);
+        }
+    }
+
+    static void deleteRecursively (Path root) throws IOException {
+        if (root == null || !Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Latency of FileIndexer.deleteDocs followed by a commit, as the watcher does it,
+// for growing index sizes. Deleted documents are added back so the size stays put.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeleteBenchmark {
+
+    @Param({"10000", "100000", "500000"})
+    public int indexSize;
+
+    private static final int WORDS = 50;
+
+    private Directory dir;
+    private IndexWriter writer;
+    private FileIndexer indexer;
+    private CorpusGenerator generator;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        dir = new ByteBuffersDirectory();
+        writer = BenchmarkIndex.build(dir, indexSize, WORDS, 42);
+        // nothing is parsed here, and the text cache would be the user's own ~/.index-texts.db
+        System.setProperty("lucyna.dedup.mb", "0");
+        indexer = new FileIndexer(LoggerFactory.getLogger(DeleteBenchmark.class), 1, 1);
+        generator = new CorpusGenerator(7);
+        random = new Random(7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws IOException {
+        indexer.close();
+        writer.close();
+        dir.close();
+    }
+
+    @Benchmark
+    public void deleteFile () throws IOException {
+        int doc = random.nextInt(indexSize);
+        indexer.deleteDocs(writer, Paths.get(BenchmarkIndex.path(doc)), true);
+        writer.addDocument(BenchmarkIndex.document(doc, BenchmarkIndex.text(generator, doc, WORDS)));
+        writer.commit();
+    }
+
+    @Benchmark
+    public void deleteDirectory () throws IOException {
+        int directory = random.nextInt(indexSize / BenchmarkIndex.FILES_PER_DIRECTORY);
+        indexer.deleteDocs(writer, Paths.get(BenchmarkIndex.directory(directory)), true);
+
+        int first = directory * BenchmarkIndex.FILES_PER_DIRECTORY;
+        for (int doc = first; doc < first + BenchmarkIndex.FILES_PER_DIRECTORY; doc++)
+            writer.addDocument(BenchmarkIndex.document(doc, BenchmarkIndex.text(generator, doc, WORDS)));
+        writer.commit();
+    }
+}
@@ -0,0 +1,66 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Files indexed per second through FileIndexer, i.e. Tika parsing, language
+// detection and updateDocument. Run with -t N to index from N threads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"txt", "pdf", "docx"})
+    public String fileType;
+
+    @Param({"500"})
+    public int words;
+
+    @Param({"200"})
+    public int files;
+
+    private Path corpus;
+    private List<Path> paths;
+    private Directory dir;
+    private IndexWriter writer;
+    private FileIndexer indexer;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        corpus = Files.createTempDirectory("lucyna-corpus");
+        paths = new CorpusGenerator(42).corpus(corpus, fileType, files, words);
+        dir = new ByteBuffersDirectory();
+        writer = DirectoriesWatcher.createIndexWriter(dir);
+        // every round parses the same files again, the text cache would serve them instead
+        System.setProperty("lucyna.dedup.mb", "0");
+        indexer = new FileIndexer(LoggerFactory.getLogger(IndexingBenchmark.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws IOException {
+        indexer.close();
+        writer.close();
+        dir.close();
+        CorpusGenerator.deleteRecursively(corpus);
+    }
+
+    // updates keep the index at the size of the corpus
+    @Benchmark
+    public void indexFile () {
+        Path file = paths.get(Math.floorMod(next.getAndIncrement(), paths.size()));
+        indexer.indexAllFiles(writer, file, true);
+    }
+}
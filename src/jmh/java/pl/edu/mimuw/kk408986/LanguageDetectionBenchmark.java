@@ -0,0 +1,34 @@
+package pl.edu.mimuw.kk408986;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+// Cost of ContentExtractor.detectLanguage for documents of growing size.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LanguageDetectionBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int words;
+
+    @Param({"en", "pl"})
+    public String language;
+
+    private ContentExtractor extractor;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp () {
+        extractor = new ContentExtractor(Settings.detectionSampleSize(), 1);
+        text = new CorpusGenerator(42).text(language, words);
+    }
+
+    @Benchmark
+    public String detectLanguage () {
+        return extractor.detectLanguage(text);
+    }
+}
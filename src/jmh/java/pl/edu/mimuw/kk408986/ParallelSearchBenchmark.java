@@ -0,0 +1,71 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Latency distribution of a single query with segment slices searched by growing numbers
+// of threads. The index is merged into equal segments, each of them a slice of its own.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParallelSearchBenchmark {
+
+    @Param({"500000"})
+    public int indexSize;
+
+    @Param({"16"})
+    public int segments;
+
+    @Param({"1", "2", "4", "8"})
+    public int searchThreads;
+
+    @Param({"fuzzy", "term"})
+    public String searchMode;
+
+    private static final int WORDS = 100;
+    private static final int QUERIES = 64;
+
+    private Path index;
+    private SearchService service;
+    private String[] queries;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        index = Files.createTempDirectory("lucyna-index");
+        try (Directory dir = FSDirectory.open(index);
+             IndexWriter writer = BenchmarkIndex.build(dir, indexSize, WORDS, 42)) {
+            writer.forceMerge(segments);
+        }
+        System.setProperty("lucyna.search.threads", Integer.toString(searchThreads));
+        System.setProperty("lucyna.search.slice.docs", "1");
+        System.setProperty("lucyna.search.cache", "0");
+        service = new SearchService(index);
+
+        CorpusGenerator generator = new CorpusGenerator(7);
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+            queries[i] = generator.word("en");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws IOException {
+        service.close();
+        CorpusGenerator.deleteRecursively(index);
+    }
+
+    @Benchmark
+    public SearchService.Results search () throws IOException {
+        String query = queries[next++ % QUERIES];
+        return service.search(new SearchRequest(query, searchMode, "en", Settings.pageSize()), null);
+    }
+}
@@ -0,0 +1,75 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Query latency of SearchService per search mode, with and without highlighting
+// the page of hits.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"100000"})
+    public int indexSize;
+
+    @Param({"term", "phrase", "fuzzy"})
+    public String searchMode;
+
+    @Param({"en", "pl"})
+    public String language;
+
+    @Param({"false", "true"})
+    public boolean highlight;
+
+    private static final int WORDS = 200;
+    private static final int QUERIES = 64;
+
+    private Path index;
+    private SearchService service;
+    private PassageFormatter formatter;
+    private String[] queries;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        index = Files.createTempDirectory("lucyna-index");
+        try (Directory dir = FSDirectory.open(index);
+             IndexWriter writer = BenchmarkIndex.build(dir, indexSize, WORDS, 42)) {
+            writer.forceMerge(1);
+        }
+        System.setProperty("lucyna.search.cache", "0");     // measure searching, not the cache
+        service = new SearchService(index);
+        formatter = highlight ? new DefaultPassageFormatter("<b>", "</b>", "...", false) : null;
+
+        CorpusGenerator generator = new CorpusGenerator(7);
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String word = generator.word(language);
+            queries[i] = searchMode.equals("phrase") ? word + " " + generator.word(language) : word;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws IOException {
+        service.close();
+        CorpusGenerator.deleteRecursively(index);
+    }
+
+    @Benchmark
+    public SearchService.Results search () throws IOException {
+        String query = queries[next++ % QUERIES];
+        return service.search(new SearchRequest(query, searchMode, language, Settings.pageSize()), formatter);
+    }
+}
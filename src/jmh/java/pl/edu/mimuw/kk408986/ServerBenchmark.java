@@ -0,0 +1,75 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Queries per second answered by the HTTP server over loopback, one client per JMH thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ServerBenchmark {
+
+    @Param({"100000"})
+    public int indexSize;
+
+    @Param({"term", "fuzzy"})
+    public String searchMode;
+
+    private static final int WORDS = 200;
+
+    private Path index;
+    private SearchService service;
+    private SearchServer server;
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        index = Files.createTempDirectory("lucyna-index");
+        try (Directory dir = FSDirectory.open(index);
+             IndexWriter writer = BenchmarkIndex.build(dir, indexSize, WORDS, 42)) {
+            writer.forceMerge(1);
+        }
+        System.setProperty("lucyna.search.cache", "0");     // measure searching, not the cache
+        service = new SearchService(index);
+        server = new SearchServer(service, 0, Settings.serverThreads(), Settings.serverQueueSize());
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws IOException {
+        server.stop();
+        service.close();
+        CorpusGenerator.deleteRecursively(index);
+    }
+
+    @Benchmark
+    public int query () throws IOException {
+        String word = CorpusGenerator.ENGLISH[ThreadLocalRandom.current().nextInt(CorpusGenerator.ENGLISH.length)];
+        URL url = new URL("http://127.0.0.1:" + server.port() + "/search?mode=" + searchMode
+                + "&query=" + URLEncoder.encode(word, "UTF-8"));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int read = 0;
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                read += n;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,191 @@
+package pl.edu.mimuw.kk408986;
+
+import com.google.gson.*;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs queries read one per line from a file or stdin ("-"), on a pool of threads sharing
+// one searcher. A line is either a JSON object as taken by POST /search, or a query run
+// with the defaults:
+//
+//   {"query": "...", "mode": "fuzzy", "lang": "all", "limit": 5, "details": false}
+//   some words
+//
+// Answers are written to stdout as JSON Lines in the order of the input, the same objects
+// the server answers with plus "line", "query" and "micros". A failed query gets
+// {"line": n, "error": "..."}. Throughput and latency percentiles go to stderr at the end;
+// repeated queries come from the result cache unless lucyna.search.cache=0.
+class BatchSearcher {
+
+    private static Logger logger = LoggerFactory.getLogger(BatchSearcher.class);
+
+    private static class Answer {
+        final JsonObject json;
+        final long nanos;       // -1 for a failed query
+
+        Answer (JsonObject json, long nanos) {
+            this.json = json;
+            this.nanos = nanos;
+        }
+    }
+
+    private final SearchService service;
+    private final ExecutorService executor;
+    private final int window;       // queries read ahead of the first one not yet written
+    private final PassageFormatter formatter = new DefaultPassageFormatter("<b>", "</b>", "...", false);
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    // of the answers written so far
+    private final List<Long> latencies = new ArrayList<>();
+    private int errors = 0;
+
+    BatchSearcher (SearchService service, int threads) {
+        this.service = service;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "batch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.window = 4 * threads;
+    }
+
+    static void run (Path index, String input) {
+        try (SearchService service = new SearchService(index);
+             BufferedReader in = input.equals("-")
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                     : Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            new BatchSearcher(service, Settings.batchThreads()).run(in, out, System.err);
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    void run (BufferedReader in, Writer out, PrintStream summary) throws IOException {
+        ArrayDeque<Future<Answer>> inFlight = new ArrayDeque<>();
+        long start = System.nanoTime();
+
+        try {
+            int number = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                number++;
+                if (line.trim().isEmpty())
+                    continue;
+                int lineNumber = number;
+                String text = line;
+                inFlight.add(executor.submit(() -> answer(lineNumber, text)));
+                if (inFlight.size() >= window)
+                    write(inFlight.remove(), out);
+            }
+            while (!inFlight.isEmpty())
+                write(inFlight.remove(), out);
+        } finally {
+            // what was answered is kept and summed up even if the batch could not go on
+            executor.shutdownNow();
+            try {
+                out.flush();
+            } finally {
+                summary.println(summary(System.nanoTime() - start));
+            }
+        }
+    }
+
+    private void write (Future<Answer> next, Writer out) throws IOException {
+        if (!next.isDone())
+            out.flush();        // whatever is ready goes out before waiting
+        Answer answer = result(next);
+        if (answer.nanos < 0)
+            errors++;
+        else
+            latencies.add(answer.nanos);
+        gson.toJson(answer.json, out);
+        out.write('\n');
+    }
+
+    private Answer answer (int line, String text) {
+        JsonObject json;
+        try {
+            JsonObject params;
+            if (text.trim().startsWith("{")) {
+                params = SearchServer.requestObject(gson.fromJson(text, JsonElement.class));
+            } else {
+                params = new JsonObject();
+                params.addProperty("query", text);
+            }
+            SearchRequest request = SearchServer.parseRequest(params);
+            boolean details = SearchServer.flag(params, "details");
+
+            long start = System.nanoTime();
+            SearchService.Results results = service.search(request, details ? formatter : null);
+            long nanos = System.nanoTime() - start;
+
+            json = SearchServer.toJson(results, TimeUnit.NANOSECONDS.toMillis(nanos));
+            json.addProperty("line", line);
+            json.addProperty("query", request.query);
+            json.addProperty("micros", TimeUnit.NANOSECONDS.toMicros(nanos));
+            return new Answer(json, nanos);
+        } catch (JsonParseException | IllegalArgumentException e) {
+            json = error(line, "Malformed request: " + e.getMessage());
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            json = error(line, "Low-level I/O error.");
+        } catch (RuntimeException e) {
+            // one query going wrong does not stop the batch
+            logger.error("Query on line " + line + " failed: ", e);
+            json = error(line, "Query failed: " + e);
+        }
+        return new Answer(json, -1);
+    }
+
+    private static Answer result (Future<Answer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a query");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static JsonObject error (int line, String message) {
+        JsonObject json = new JsonObject();
+        json.addProperty("line", line);
+        json.addProperty("error", message);
+        return json;
+    }
+
+    private String summary (long wallNanos) {
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = latencies.get(i);
+        Arrays.sort(sorted);
+
+        double seconds = wallNanos / 1e9;
+        int queries = sorted.length + errors;
+        return String.format(Locale.ROOT,
+                "%d queries (%d failed) in %.2f s, %.1f queries/s; latency ms p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                queries, errors, seconds, (seconds > 0) ? queries / seconds : 0,
+                percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.90),
+                percentileMillis(sorted, 0.99), percentileMillis(sorted, 1.0));
+    }
+
+    // nearest rank
+    private static double percentileMillis (long[] sorted, double q) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(q * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,41 @@
+package pl.edu.mimuw.kk408986;
+
+// Group commit: pending changes are committed together once there are enough
+// of them or the oldest one has waited long enough.
+class CommitPolicy {
+
+    private final long maxDelayMillis;
+    private final int maxPending;
+
+    private int pending = 0;
+    private long oldestPending;
+
+    CommitPolicy (long maxDelayMillis, int maxPending) {
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxPending = maxPending;
+    }
+
+    void changed (int count) {
+        if (count <= 0)
+            return;
+        if (pending == 0)
+            oldestPending = System.currentTimeMillis();
+        pending += count;
+    }
+
+    boolean hasPending () {
+        return pending > 0;
+    }
+
+    boolean isDue () {
+        return pending >= maxPending || (pending > 0 && millisUntilDue() == 0);
+    }
+
+    long millisUntilDue () {
+        return Math.max(0, oldestPending + maxDelayMillis - System.currentTimeMillis());
+    }
+
+    void committed () {
+        pending = 0;
+    }
+}
@@ -0,0 +1,191 @@
+package pl.edu.mimuw.kk408986;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.tika.Tika;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.langdetect.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+import org.apache.tika.language.detect.LanguageResult;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Text extraction and language detection shared by all indexer threads.
+class ContentExtractor {
+
+    private static Logger logger = LoggerFactory.getLogger(ContentExtractor.class);
+
+    private static final long STUCK_GRACE_MILLIS = 200;
+
+    // A file that was not parsed because it is too large or took too long.
+    static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String reason;
+
+        LimitExceededException (String reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+
+    private final Tika tika;                                // Tika facade is thread-safe
+    private final ThreadLocal<LanguageDetector> detectors;  // detectors are not, keep one per thread
+    private final int sampleSize;
+
+    private final long maxFileSize;
+    private final long timeoutMillis;
+    private final int maxChars;
+    private final Set<String> forkedTypes;
+    private ForkParser forkParser = null;
+
+    // Parsing runs here, the indexer thread reads the text as it comes and can give up on it.
+    // A parser stuck in a loop ignores the interrupt and keeps its thread, so types known
+    // to do that are better forked. Stuck threads are counted, and once maxStuck of them
+    // are, files are skipped rather than parsed here, which also bounds the pool.
+    private final ThreadPoolExecutor parsers;
+    private final AtomicInteger stuck = new AtomicInteger();
+    private final int maxStuck;
+
+    // readers: threads that may be reading a text at the same time
+    ContentExtractor (int sampleSize, int readers) {
+        this.tika = new Tika();
+        this.detectors = ThreadLocal.withInitial(() -> new OptimaizeLangDetector().loadModels());
+        this.sampleSize = sampleSize;
+        this.maxFileSize = Settings.parseMaxFileSize();
+        this.timeoutMillis = Settings.parseTimeoutMillis();
+        this.maxChars = Settings.parseMaxChars();
+        this.forkedTypes = Settings.parseForkedTypes();
+        this.maxStuck = Settings.parseMaxStuck();
+        this.parsers = new ThreadPoolExecutor(0, readers + maxStuck, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread (Runnable r) {
+                        Thread t = new Thread(r, "parser-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        Metrics.gauge("lucyna_parser_stuck_threads", stuck::get);
+
+        // load the language profiles now rather than on the first indexed file
+        detectors.get();
+    }
+
+    // Starts parsing the file and returns its text as it is being extracted.
+    Reader open (Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > maxFileSize)
+            throw new LimitExceededException("size", file + " has " + size + " bytes, the limit is " + maxFileSize);
+
+        boolean forked = !forkedTypes.isEmpty() && forkedTypes.contains(mimeType(file));
+        Parser parser = forked ? forkParser() : tika.getParser();
+        TextPipe pipe = new TextPipe(file, timeoutMillis, maxChars, stuck);
+        Runnable parse = () -> {
+            if (!pipe.started())
+                return;
+            Metadata metadata = new Metadata();
+            ParseContext context = new ParseContext();
+            if (!forked)
+                context.set(Parser.class, parser);      // parse embedded documents too
+
+            // longer documents are truncated by the pipe, not rejected
+            try (InputStream in = TikaInputStream.get(file, metadata)) {
+                parser.parse(in, new BodyContentHandler(pipe.writer()), metadata, context);
+                pipe.finish();
+            } catch (Throwable t) {
+                pipe.fail(t);
+            } finally {
+                pipe.stopped();
+            }
+        };
+
+        // A parser that was given up on normally returns as soon as it is interrupted, so
+        // it is only taken for stuck if it has not after a moment.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STUCK_GRACE_MILLIS);
+        while (true) {
+            if (stuck.get() < maxStuck) {
+                try {
+                    pipe.producedBy(parsers.submit(parse));
+                    return pipe;
+                } catch (RejectedExecutionException e) {
+                    // every thread is taken, by readers and parsers that did not return yet
+                }
+            }
+            if (System.nanoTime() - deadline > 0)
+                throw stuck(file);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a parser thread");
+            }
+        }
+    }
+
+    private LimitExceededException stuck (Path file) {
+        logger.warn("{} parser threads are stuck, {} skipped", stuck.get(), file);
+        return new LimitExceededException("stuck", file + " not parsed, " + stuck.get()
+                + " parser threads are stuck on earlier files, the limit is " + maxStuck);
+    }
+
+    private synchronized ForkParser forkParser () {
+        if (forkParser == null) {
+            forkParser = new ForkParser(ContentExtractor.class.getClassLoader(), new AutoDetectParser());
+            forkParser.setJavaCommand(Arrays.asList("java", "-Xmx" + Settings.parseForkHeap()));
+            forkParser.setPoolSize(Settings.indexerThreads());
+        }
+        return forkParser;
+    }
+
+    String mimeType (Path file) {
+        try {
+            return tika.detect(file);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    String detectLanguage (String text) {
+        char[] sample = new char[Math.min(text.length(), sampleSize)];
+        text.getChars(0, sample.length, sample, 0);
+        return detectLanguage(sample, sample.length);
+    }
+
+    // Only the first sampleSize characters are looked at, so the cost does not grow with the document.
+    String detectLanguage (char[] text, int length) {
+        LanguageDetector detector = detectors.get();
+        detector.reset();
+        detector.addText(text, 0, Math.min(length, sampleSize));
+        List<LanguageResult> l = detector.detectAll();
+
+        return l.get(0).getLanguage();
+    }
+
+    synchronized void close () {
+        parsers.shutdownNow();
+        if (forkParser != null)
+            forkParser.close();
+    }
+}
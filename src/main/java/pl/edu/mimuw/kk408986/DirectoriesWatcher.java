@@ -6,18 +6,20 @@ import static java.nio.file.LinkOption.*;
 import java.nio.file.attribute.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
-import org.apache.lucene.analysis.pl.PolishAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene80.Lucene80Codec;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,131 +27,366 @@ public class DirectoriesWatcher {
 
     private static Logger logger = LoggerFactory.getLogger(DirectoriesWatcher.class);
 
+    private static final Metrics.Histogram commitTime = Metrics.histogram("lucyna_commit_seconds");
+    private static final Metrics.Histogram freshness = Metrics.histogram("lucyna_freshness_seconds");
+
     private final WatchService watcher;
-    private final Map<WatchKey, Path> keys;
+    private final WatchRegistry watches;
+
+    // Tree work (new directories, polled subtrees, startup reconciliation) runs there, one job at
+    // a time, so that the event loop keeps applying changes of single files in the meantime.
+    private final ThreadPoolExecutor bulk;
+    private static final long BULK_STOP_MILLIS = 5000;      // how long a bulk job may go on on exit
 
     @SuppressWarnings("unchecked")
     private static <T> WatchEvent<T> cast(WatchEvent<?> event) {
         return (WatchEvent<T>) event;
     }
 
-    private void register (Path dir) throws IOException {
-        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-        keys.put(key, dir);
+    private DirectoriesWatcher () throws IOException {
+        this.watcher = FileSystems.getDefault()
+                .newWatchService();
+        this.watches = new WatchRegistry(watcher, Settings.watchMaxDirectories(), Settings.indexerThreads());
+        this.bulk = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "index-bulk");
+            t.setDaemon(true);
+            return t;
+        });
+        Metrics.gauge("lucyna_indexer_bulk_jobs", () -> bulk.getQueue().size() + bulk.getActiveCount());
+    }
+
+    // The writer of the shard path belongs to, null if path lies outside of every root.
+    private static IndexWriter writerOf (IndexShards shards, Path path) throws IOException {
+        IndexShards.Shard shard = shards.shardOf(path);
+        return (shard == null) ? null : shard.writer();
+    }
+
+    private void collectEvents (WatchKey key, Path dir, FileIndexer indexer, IndexShards shards, EventCoalescer events) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW) {
+                logger.warn("Events lost in {}, rescanning it.", dir);
+                rescan(dir, indexer, shards, events);
+                continue;
+            }
+            WatchEvent<Path> ev = cast(event);
+            Path name = ev.context();
+            Path child = dir.resolve(name);
+
+            events.add(child, kind == ENTRY_CREATE);
+            logger.info("{}: {}", event.kind().name(), child);
+        }
     }
 
-    private void registerAll (final Path start) throws IOException {
-        // register directory and sub-directories
-        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                register(dir);
-                return FileVisitResult.CONTINUE;
+    // Queues everything the index or the file system knows to be directly in dir,
+    // subdirectories are watched and rescanned on their own.
+    private void rescan (Path dir, FileIndexer indexer, IndexShards shards, EventCoalescer events) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            IndexWriter writer = writerOf(shards, dir);
+            if (writer != null) {
+                for (Path indexed : indexer.indexedChildren(writer, dir))
+                    events.add(indexed, false);
             }
+            for (Path entry : entries) {
+                boolean unwatched = Files.isDirectory(entry, NOFOLLOW_LINKS) && !watches.isWatched(entry);
+                events.add(entry, unwatched);
+            }
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    // Brings the index in line with the current state of a settled path. Returns the number
+    // of changes made to the index, a new directory is handed to the bulk lane and counts none.
+    private int apply (EventCoalescer.Settled event, FileIndexer indexer, IndexShards shards) {
+        Path path = event.path;
+        IndexShards.Shard shard = shards.shardOf(path);
+        if (shard == null)
+            return 0;       // its root has been removed meanwhile
+        IndexWriter writer;
+        try {
+            writer = shard.writer();
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return 0;
+        }
+
+        if (!Files.exists(path, NOFOLLOW_LINKS)) {
+            indexer.deleteDocs(writer, path, false);
+            return 1;
+        }
+        if (!Files.isDirectory(path, NOFOLLOW_LINKS)) {
+            // updateDocument replaces the old version, if any, by its path term
+            indexer.indexAllFiles(writer, path, true);
+            return 1;
+        }
+        if (!event.created) {
+            // a modified directory only means changed entries, and those get events of their own
+            return 0;
+        }
+        // a directory recreated within the quiet window may still have stale documents
+        indexer.deleteDocs(writer, path, true);
+        watches.registerAll(path);
+        bulk.execute(() -> {
+            // by path, events from the new watches may have indexed some of its files already
+            indexer.indexAllFiles(writer, path, true);
+            addDirectoryToIndexedDirectories(writer, path);
+            commit(shard);
+            freshness.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - event.firstEvent));
         });
+        return 0;
     }
 
-    private DirectoriesWatcher () throws IOException {
-        this.watcher = FileSystems.getDefault()
-                .newWatchService();
-        this.keys = new HashMap<>();
+    // The bulk lane commits its own work, the event loop's commit policy only counts live changes.
+    private static void commit (IndexShards.Shard shard) {
+        try {
+            long start = System.nanoTime();
+            shard.commit();
+            commitTime.recordSince(start);
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    private int applyLive (EventCoalescer.Settled event, FileIndexer indexer, IndexShards shards) {
+        int changes = apply(event, indexer, shards);
+        if (changes > 0)
+            freshness.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - event.firstEvent));
+        return changes;
     }
 
-    private void processEvents (FileIndexer indexer, Directory indexDir) {
+    // Compares the polled subtrees with the file system, on the bulk lane. Only directories
+    // whose mtime changed are reconciled, unless full.
+    private void poll (List<Path> subtrees, FileIndexer indexer, IndexShards shards, boolean full) {
+        for (Path subtree : subtrees) {
+            IndexShards.Shard shard = shards.shardOf(subtree);
+            if (shard == null)
+                continue;
+            try {
+                IndexWriter writer = shard.writer();
+                int changes = 0;
+                if (full) {
+                    watches.resetDirectories(subtree);      // first, so that nothing changed meanwhile is missed
+                    changes = indexer.reconcile(writer, subtree);
+                } else {
+                    List<Path> vanished = new ArrayList<>();
+                    changes = indexer.reconcileChildren(writer, watches.changedDirectories(subtree, vanished));
+                    for (Path dir : vanished) {
+                        indexer.deleteDocs(writer, dir, false);
+                        changes++;
+                    }
+                }
+                if (changes > 0)
+                    commit(shard);
+            } catch (IOException e) {
+                logger.error("Low-level I/O error: ", e);
+            }
+        }
+    }
+
+    // Only the shards that changed get a commit.
+    private static void commit (IndexShards shards, CommitPolicy commits) {
+        try {
+            long start = System.nanoTime();
+            shards.commit();
+            commitTime.recordSince(start);
+            commits.committed();
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    private void processEvents (FileIndexer indexer, IndexShards shards) {
+        CommitPolicy commits = new CommitPolicy(Settings.commitIntervalMillis(), Settings.commitMaxChanges());
+        EventCoalescer events = new EventCoalescer(Settings.watchQuietMillis());
+        Metrics.gauge("lucyna_watcher_pending_events", events::size);
+        Metrics.gauge("lucyna_watcher_freshness_lag_millis", events::lagMillis);
+        long nextPoll = System.currentTimeMillis() + Settings.watchPollMillis();
+        Future<?> polling = null;
+        int polls = 0;
+
         for (;;) {
             WatchKey key;
             try {
-                key = watcher.take();
+                // wake up in time for settled paths, pending commits and polling
+                long wait = events.millisUntilSettled();
+                if (commits.hasPending())
+                    wait = Math.min(wait, commits.millisUntilDue());
+                if (watches.hasPolled())
+                    wait = Math.min(wait, Math.max(0, nextPoll - System.currentTimeMillis()));
+
+                if (wait == Long.MAX_VALUE)
+                    key = watcher.take();
+                else
+                    key = watcher.poll(wait, TimeUnit.MILLISECONDS);
             } catch (InterruptedException x) {
                 return;
             }
 
-            Path dir = keys.get(key);
-            if (dir == null) {
-                logger.warn("WatchKey not recognized!!");
-                continue;
-            }
-
-            try (IndexWriter writer = createIndexWriter(indexDir)) {
-                if (writer == null) {
-                    logger.error("Writer could not be created.");
-                    continue;
-                }
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    WatchEvent.Kind<?> kind = event.kind();
-                    WatchEvent<Path> ev = cast(event);
-                    Path name = ev.context();
-                    Path child = dir.resolve(name);
-
-                    if (kind == ENTRY_DELETE || kind == ENTRY_MODIFY) {
-                        indexer.deleteDocs(writer, child, kind == ENTRY_MODIFY);
-                    }
-                    if (kind == ENTRY_CREATE || kind == ENTRY_MODIFY) {
-                        indexer.indexAllFiles(writer, child, kind == ENTRY_MODIFY);
-                    }
-                    logger.info("{}: {}", event.kind().name(), child);
-
-                    if (kind == ENTRY_CREATE) {
-                        if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                            addDirectoryToIndexedDirectories(writer, child);
-                            registerAll(child);
+            if (key != null) {
+                Path dir = watches.directory(key);
+                if (dir == null) {
+                    logger.warn("WatchKey not recognized!!");
+                } else {
+                    collectEvents(key, dir, indexer, shards, events);
+
+                    boolean valid = key.reset();
+                    if (!valid) {
+                        watches.cancelled(key);
+
+                        if (watches.isEmpty()) {
+                            for (EventCoalescer.Settled event : events.all())
+                                applyLive(event, indexer, shards);
+                            break;
                         }
                     }
                 }
-            } catch (IOException e) {
-                logger.error("Low-level I/O error: ", e);
             }
 
-            boolean valid = key.reset();
-            if (!valid) {
-                keys.remove(key);
+            for (EventCoalescer.Settled event : events.settled())
+                commits.changed(applyLive(event, indexer, shards));
 
-                if (keys.isEmpty()) {
-                    break;
+            if (System.currentTimeMillis() >= nextPoll) {
+                // a poll still running is not queued again
+                if (polling == null || polling.isDone()) {
+                    List<Path> subtrees = watches.polledSubtrees();
+                    boolean full = (++polls % Settings.watchFullPollEvery() == 0);
+                    polling = bulk.submit(() -> poll(subtrees, indexer, shards, full));
                 }
+                nextPoll = System.currentTimeMillis() + Settings.watchPollMillis();
             }
-        }
-    }
-
-    private static void remove (IndexWriter writer, Path path, String index, FileIndexer indexer) {
-        ArrayList<String> dirs = indexedDirectories(index);
-        boolean exists = false;
 
-        for (String dir : dirs) {
-            if (dir.equals(path.toString()))
-                exists = true;
+            if (commits.isDue())
+                commit(shards, commits);
         }
+    }
 
-        if (exists) {
-            indexer.deleteDocs(writer, path, false);
-            logger.info("Directory " + path + " removed.");
+    // A root is removed by dropping its shard, a directory inside one by deleting its documents.
+    private static void remove (IndexShards shards, Path path, FileIndexer indexer) {
+        IndexShards.Shard shard = shards.shardOf(path);
+        try {
+            if (shard != null && shard.root.equals(path)) {
+                shards.drop(shard);
+                logger.info("Directory " + path + " removed.");
+                return;
+            }
+            if (shard != null && directoryIsIndexed(shard.writer(), path)) {
+                indexer.deleteDocs(shard.writer(), path, false);
+                shard.commit();
+                logger.info("Directory " + path + " removed.");
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
             return;
         }
 
         logger.info("Given directory is not indexed.");
     }
 
-    private static void reindex (IndexWriter writer, String index, FileIndexer indexer) {
-        try {
-            ArrayList<String> indexedDirs = indexedDirectories(index);
-            writer.deleteAll();
+    // Indexed directories that do not lie inside another indexed directory.
+    static List<String> indexedRoots (List<String> dirs) {
+        List<String> roots = new ArrayList<>();
+        for (String dir : dirs) {
+            boolean nested = false;
+            for (String other : dirs) {
+                if (!other.equals(dir) && Paths.get(dir).startsWith(Paths.get(other)))
+                    nested = true;
+            }
+            if (!nested)
+                roots.add(dir);
+        }
+        return roots;
+    }
 
-            if (indexedDirs.isEmpty()) {
-                logger.info("No directories to reindex.");
-                return;
+    // Compares every indexed directory with the file system and reparses only what changed.
+    // Shards do not share a writer, so they are reconciled in parallel.
+    private static void reconcile (List<IndexShards.Shard> shards, FileIndexer indexer) {
+        shards.parallelStream().forEach(shard -> reconcile(shard, indexer));
+    }
+
+    // Every file is replaced in place by its new version, so the shard is never half built;
+    // an interrupted run keeps its checkpoints and the next one skips what they hold.
+    private static void reconcile (IndexShards.Shard shard, FileIndexer indexer) {
+        try {
+            IndexWriter writer = shard.writer();
+            for (String dir : indexedDirectories(writer)) {
+                if (!Paths.get(dir).equals(shard.root) && !Files.isDirectory(Paths.get(dir)))
+                    indexer.deleteDocs(writer, Paths.get(dir), false);
             }
-            for (String dir : indexedDirs) {
-                indexer.indexAllFiles(writer, Paths.get(dir), false);
-                addDirectoryToIndexedDirectories(writer, Paths.get(dir));
+            checkpointed(shard, () -> indexer.reconcile(writer, shard.root));
+            shard.commit();
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    // Commits shard every lucyna.bulk.checkpoint while work runs.
+    private static void checkpointed (IndexShards.Shard shard, Runnable work) {
+        ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "index-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        long every = Settings.checkpointMillis();
+        checkpoints.scheduleWithFixedDelay(() -> checkpoint(shard), every, every, TimeUnit.MILLISECONDS);
+        try {
+            work.run();
+        } finally {
+            // not interrupted, a commit in progress is let finish
+            checkpoints.shutdown();
+            try {
+                checkpoints.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            logger.info("All directories reindexed.");
+        }
+    }
+
+    private static void checkpoint (IndexShards.Shard shard) {
+        try {
+            long start = System.nanoTime();
+            shard.commit();
+            commitTime.recordSince(start);
+            logger.info("{}: checkpoint at {} files.", shard.root, shard.writer().getDocStats().numDocs);
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
         }
     }
 
-    private static void list (String index) {
-        ArrayList<String> indexedDirectories = indexedDirectories(index);
+    // Every root, or only the given one.
+    private static void reindex (IndexShards shards, FileIndexer indexer, Path root) {
+        List<IndexShards.Shard> selected = shards.all();
+        if (root != null) {
+            IndexShards.Shard shard = shards.shard(root);
+            selected = (shard == null) ? Collections.emptyList() : Collections.singletonList(shard);
+        }
+
+        if (selected.isEmpty()) {
+            logger.info((root == null) ? "No directories to reindex." : "Given directory is not indexed.");
+            return;
+        }
+        reconcile(selected, indexer);
+        logger.info((root == null) ? "All directories reindexed." : "Directory " + root + " reindexed.");
+    }
+
+    // Read from the last commits, so that it needs no writer and works while the indexer runs.
+    // The single index of older versions is listed as well until it is migrated.
+    private static void list (IndexShards shards) {
+        TreeSet<String> indexedDirectories = new TreeSet<>();
+        for (IndexShards.Shard shard : shards.all()) {
+            try (DirectoryReader reader = DirectoryReader.open(shard.directory)) {
+                indexedDirectories.addAll(indexedDirectories(reader));
+            } catch (IOException e) {
+                logger.error("Low-level I/O error: ", e);
+            }
+        }
+        try {
+            indexedDirectories.addAll(shards.legacyDirectories());
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
 
         if (indexedDirectories.isEmpty()) {
             System.out.println("No indexed directories.");
@@ -163,139 +400,305 @@ public class DirectoriesWatcher {
         }
     }
 
-    private static void purge (IndexWriter writer) {
+    private static void listSkipped (FileIndexer indexer) {
+        List<SkipList.Entry> entries = indexer.skipped().entries();
+
+        if (entries.isEmpty()) {
+            System.out.println("No skipped files.");
+            return;
+        }
+
+        System.out.println("Skipped files: ");
+
+        for (SkipList.Entry e : entries) {
+            System.out.println(e.path + " (" + e.reason + ")");
+        }
+    }
+
+    private static void purge (IndexShards shards) {
         try {
-            if (writer == null) {
-                logger.error("Index not purged. IndexWriter creating problem.");
-                return;
-            }
-            writer.deleteAll();
+            for (IndexShards.Shard shard : shards.all())
+                shards.drop(shard);
+            for (IndexShards.Shard shard : shards.staged())
+                shards.drop(shard);
+            shards.dropLegacy();
             logger.info("Index has been purged.");
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
         }
     }
 
-    private static void add (IndexWriter writer, FileIndexer indexer, Path path) {
-        if (!directoryIsIndexed(path) && Files.isReadable(path)) {
-            indexer.indexAllFiles(writer, path, false);
+    // A new root gets a shard of its own, built in the staging directory and published when
+    // complete. Roots inside it become part of it, their files are copied rather than parsed
+    // again and their shards are dropped once it is published. An interrupted run is resumed
+    // from its last checkpoint by adding the root again. False if no shard was published.
+    private static boolean add (IndexShards shards, FileIndexer indexer, Path path) {
+        if (!Files.isReadable(path)) {
+            System.out.println("Directory does not exist.");
+            return false;
+        }
+        if (shards.shardOf(path) != null) {
+            System.out.println("Directory already indexed.");
+            return false;
+        }
+
+        try {
+            List<IndexShards.Shard> nested = shards.shardsUnder(path);
+            IndexShards.Shard staged = shards.staged(path);
+            boolean resumed = (staged != null);
+            if (resumed) {
+                logger.info("Resuming {} from {} files.", path, staged.writer().getDocStats().numDocs);
+            } else {
+                staged = shards.stage(path);
+                for (IndexShards.Shard inner : nested)
+                    shards.copy(staged, inner);
+                staged.commit();
+            }
+
+            IndexWriter writer = staged.writer();
+            if (resumed || !nested.isEmpty())
+                checkpointed(staged, () -> indexer.reconcile(writer, path));
+            else
+                checkpointed(staged, () -> indexer.indexAllFiles(writer, path, false));
             addDirectoryToIndexedDirectories(writer, path);
-        } else {
-            System.out.println((Files.isReadable(path)) ? "Directory already indexed." : "Directory does not exist.");
+
+            shards.publish(staged);
+            for (IndexShards.Shard inner : nested)
+                shards.drop(inner);
+            return true;
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return false;
+        }
+    }
+
+    // A root of the single index of older versions, added again unless an interrupted
+    // migration published it already. A root that is gone has nothing to be indexed from.
+    private static boolean rebuild (IndexShards shards, FileIndexer indexer, Path root, List<Path> directories) throws IOException {
+        IndexShards.Shard shard = shards.shard(root);
+        if (shard == null) {
+            if (!Files.isDirectory(root)) {
+                logger.warn("{} no longer exists, it is not indexed any more.", root);
+                return true;
+            }
+            if (!add(shards, indexer, root))
+                return false;
+            shard = shards.shard(root);
         }
+        IndexWriter writer = shard.writer();
+        for (Path dir : directories)
+            addDirectoryToIndexedDirectories(writer, dir);
+        shard.commit();
+        return true;
     }
 
     private static void addDirectoryToIndexedDirectories (IndexWriter writer, Path dir) {
         try {
             Document d = new Document();
             d.add(new StringField("directory", dir.toString(), Field.Store.YES));
-            writer.addDocument(d);
+            writer.updateDocument(new Term("directory", dir.toString()), d);
             logger.info("Directory " + dir + " added.");
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
         }
     }
 
-    private static ArrayList<String> indexedDirectories (String index) {
-        ArrayList<String> indexedDirs = new ArrayList<>();
-        try {
-            IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
-
-            for (int i = 0; i < reader.maxDoc(); i++) {
+    // Directories are the terms of the "directory" field, so listing them costs the number of
+    // indexed directories, not the number of documents. Read through the writer, so changes
+    // not yet committed are seen and a fresh index needs no commit first.
+    private static ArrayList<String> indexedDirectories (IndexWriter writer) {
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            return indexedDirectories(reader);
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return new ArrayList<>();
+        }
+    }
 
-                Document doc = reader.document(i);
-                String directory = doc.get("directory");
+    static ArrayList<String> indexedDirectories (IndexReader reader) throws IOException {
+        TreeSet<String> indexedDirs = new TreeSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms("directory");
+            if (terms == null)
+                continue;
 
-                if (directory != null) {
-                    try {
-                        indexedDirs.add(directory);
-                    } catch (NullPointerException ignore) {
-                        logger.error("ArrayList couldn't be created.");
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            TermsEnum te = terms.iterator();
+            PostingsEnum postings = null;
+            for (BytesRef term = te.next(); term != null; term = te.next()) {
+                postings = te.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        indexedDirs.add(term.utf8ToString());
+                        break;
                     }
                 }
             }
-            reader.close();
         }
-        catch (IOException e) {
-           logger.error("Low-level I/O error: ", e);
+        return new ArrayList<>(indexedDirs);
+    }
+
+    private static boolean directoryIsIndexed (IndexWriter writer, Path dir) {
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            return new IndexSearcher(reader).count(new TermQuery(new Term("directory", dir.toString()))) > 0;
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return false;
         }
-        return indexedDirs;
     }
 
-    private static boolean directoryIsIndexed (Path dir) {
-        String index = System.getProperty("user.home") + "/.index";
-        return indexedDirectories(index).contains(dir.toString());
+    private static void addIndexedDirsToWatcher (List<IndexShards.Shard> shards, DirectoriesWatcher watcher) {
+        long start = System.nanoTime();
+        for (IndexShards.Shard shard : shards) {
+            watcher.watches.registerAll(shard.root);
+        }
+        Metrics.histogram("lucyna_watch_registration_seconds").recordSince(start);
+        watcher.watches.logCoverage();
     }
 
-    private static void addIndexedDirsToWatcher (String index, DirectoriesWatcher watcher) {
+    static IndexWriter createIndexWriter (Directory dir) {
         try {
-            ArrayList<String> tabOfDirs = indexedDirectories(index);
-            for (String pathString : tabOfDirs) {
-                watcher.registerAll(Paths.get(pathString));
-            }
+            IndexWriterConfig iwc = new IndexWriterConfig(FileIndexer.createAnalyzer());
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            // segments of similar size, so that they make even slices for parallel search
+            iwc.setMergePolicy(new TieredMergePolicy()
+                    .setMaxMergedSegmentMB(Settings.mergeMaxSegmentMB())
+                    .setSegmentsPerTier(Settings.mergeSegmentsPerTier()));
+            // stored fields are only the contents, loaded for the highlighted page of hits
+            iwc.setCodec(new Lucene80Codec(Settings.bestCompression() ? Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION
+                                                                      : Lucene50StoredFieldsFormat.Mode.BEST_SPEED));
+            return new IndexWriter(dir, iwc);
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
+            return null;
         }
     }
 
-    private static IndexWriter createIndexWriter (Directory dir) {
+    // Size and segment count of the last commits of all shards.
+    private static void publishIndexMetrics (IndexShards shards) {
+        Metrics.gauge("lucyna_index_size_bytes", () -> {
+            try {
+                long size = 0;
+                for (IndexShards.Shard shard : shards.all()) {
+                    for (String file : SegmentInfos.readLatestCommit(shard.directory).files(true))
+                        size += shard.directory.fileLength(file);
+                }
+                return size;
+            } catch (IOException e) {
+                return -1;
+            }
+        });
+        Metrics.gauge("lucyna_index_segments", () -> {
+            try {
+                int segments = 0;
+                for (IndexShards.Shard shard : shards.all())
+                    segments += SegmentInfos.readLatestCommit(shard.directory).size();
+                return segments;
+            } catch (IOException e) {
+                return -1;
+            }
+        });
+    }
+
+    private void awaitBulk (long millis) {
         try {
-            HashMap<String, Analyzer> analyzerMap = new HashMap<>();
-            analyzerMap.put("contentspl", new PolishAnalyzer());
-            analyzerMap.put("contentsen", new EnglishAnalyzer());
+            bulk.awaitTermination(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            Analyzer a = new PerFieldAnalyzerWrapper(new StandardAnalyzer(), analyzerMap);
-            IndexWriterConfig iwc = new IndexWriterConfig(a);
-            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-            return new IndexWriter(dir, iwc);
+    private static void closeShards (IndexShards shards) {
+        try {
+            shards.close();
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
-            return null;
         }
     }
 
     public static void main (String[] args) {
         try {
-            Directory indexDirectory = FSDirectory.open(Paths.get(System.getProperty("user.home") + "/.index"));
-            String index = System.getProperty("user.home") + "/.index";
+            IndexShards shards = new IndexShards(Paths.get(System.getProperty("user.home") + "/.index"));
+            if (args.length > 0 && args[0].equals("--purge")) {
+                // works on indexes of any version, nothing is read from them
+                purge(shards);
+                closeShards(shards);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--list")) {
+                // only reads, so it works on indexes waiting to be migrated
+                list(shards);
+                closeShards(shards);
+                return;
+            }
 
             FileIndexer indexer = new FileIndexer(logger);
-            DirectoriesWatcher watcher = new DirectoriesWatcher();
-            IndexWriter writer = createIndexWriter(indexDirectory);
-
-            if (writer == null) {
-                logger.error("IndexWriter not created due to previous error.");
+            try {
+                shards.migrate((root, directories) -> rebuild(shards, indexer, root, directories));
+                shards.checkSchema();
+            } catch (IndexShards.RebuildRequiredException e) {
+                logger.error(e.getMessage());
+                closeShards(shards);
+                indexer.close();
+                return;
+            } catch (IOException e) {
+                logger.error("Index not migrated, run again to resume: ", e);
+                closeShards(shards);
+                indexer.close();
                 return;
             }
+            shards.dropNested();
+
+            DirectoriesWatcher watcher = new DirectoriesWatcher();
+
             if (args.length > 0) {
                 switch (args[0]) {
-                    case "--purge":
-                        purge(writer);
-                        break;
                     case "--add":
-                        add(writer, indexer, Paths.get(args[1]));
+                        add(shards, indexer, Paths.get(args[1]));
                         break;
                     case "--reindex":
-                        reindex(writer, index, indexer);
-                        break;
-                    case "--list":
-                        list(index);
+                        reindex(shards, indexer, (args.length > 1) ? Paths.get(args[1]) : null);
                         break;
                     case "--rm":
-                        remove(writer, Paths.get(args[1]), index, indexer);
+                        remove(shards, Paths.get(args[1]), indexer);
+                        break;
+                    case "--skipped":
+                        listSkipped(indexer);
+                        break;
+                    case "--retry":
+                        indexer.skipped().clear();
+                        reindex(shards, indexer, null);
                         break;
                 }
             }
-            writer.close();
-
             if (args.length == 0) {
+                // the writers stay open for the daemon's lifetime, closing them commits what is left
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    // not interrupted, an interrupt during Lucene's I/O would close the writer
+                    watcher.bulk.shutdown();
+                    watcher.awaitBulk(BULK_STOP_MILLIS);
+                    closeShards(shards);
+                }));
+                publishIndexMetrics(shards);
+                Metrics.publish();
+
+                // register first, so that nothing changed during reconciliation gets lost;
+                // events are handled while the bulk lane reconciles
+                List<IndexShards.Shard> roots = shards.all();
+                addIndexedDirsToWatcher(roots, watcher);
+                watcher.bulk.execute(() -> reconcile(roots, indexer));
+
                 logger.info("Indexer has started observation.");
-                addIndexedDirsToWatcher(index, watcher);
-                watcher.processEvents(indexer, indexDirectory);
+                watcher.processEvents(indexer, shards);
+                watcher.watches.close();
+                watcher.bulk.shutdown();
+                watcher.awaitBulk(Long.MAX_VALUE);
             }
+            closeShards(shards);
+            indexer.close();
 
         } catch (IOException e) {
             logger.error("Directory does not exists or WatchService problem: ", e);
         }
     }
-}
\ No newline at end of file
+}
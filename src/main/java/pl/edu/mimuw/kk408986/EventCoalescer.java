@@ -0,0 +1,116 @@
+package pl.edu.mimuw.kk408986;
+
+import java.nio.file.Path;
+import java.util.*;
+
+// Collapses bursts of watcher events per path. A path is handed out only once
+// no event arrived for it during the quiet window, the caller then looks at the
+// file system to see what the final state is.
+class EventCoalescer {
+
+    static class Settled {
+        final Path path;
+        final boolean created;      // path was (re)created at some point of the burst
+        final long firstEvent;
+
+        private Settled (Path path, boolean created, long firstEvent) {
+            this.path = path;
+            this.created = created;
+            this.firstEvent = firstEvent;
+        }
+    }
+
+    private static class Pending {
+        final long firstEvent;
+        final long lastEvent;
+        final boolean created;
+
+        Pending (long firstEvent, long lastEvent, boolean created) {
+            this.firstEvent = firstEvent;
+            this.lastEvent = lastEvent;
+            this.created = created;
+        }
+    }
+
+    private final long quietMillis;
+
+    // ordered by the last event, so settled paths are always at the head
+    private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<>();
+    private volatile int size = 0;      // for metrics, read from other threads
+
+    // first events of the pending paths with their counts, the oldest tells how stale the index is
+    private final TreeMap<Long, Integer> firstEvents = new TreeMap<>();
+    private volatile long oldestEvent = 0;     // 0 when nothing is pending
+
+    private static final Metrics.Counter coalesced = Metrics.counter("lucyna_watcher_coalesced_events_total");
+
+    EventCoalescer (long quietMillis) {
+        this.quietMillis = quietMillis;
+    }
+
+    void add (Path path, boolean created) {
+        long now = System.currentTimeMillis();
+        long firstEvent = now;
+        Pending previous = pending.remove(path);
+        if (previous != null) {
+            coalesced.inc();
+            created |= previous.created;
+            firstEvent = previous.firstEvent;
+        } else {
+            firstEvents.merge(firstEvent, 1, Integer::sum);
+        }
+        pending.put(path, new Pending(firstEvent, now, created));
+        updated();
+    }
+
+    private void updated () {
+        size = pending.size();
+        oldestEvent = firstEvents.isEmpty() ? 0 : firstEvents.firstKey();
+    }
+
+    boolean isEmpty () {
+        return pending.isEmpty();
+    }
+
+    long millisUntilSettled () {
+        if (pending.isEmpty())
+            return Long.MAX_VALUE;
+        Pending oldest = pending.values().iterator().next();
+        return Math.max(0, oldest.lastEvent + quietMillis - System.currentTimeMillis());
+    }
+
+    List<Settled> settled () {
+        return poll(System.currentTimeMillis() - quietMillis);
+    }
+
+    List<Settled> all () {
+        return poll(Long.MAX_VALUE);
+    }
+
+    private List<Settled> poll (long lastEventBefore) {
+        List<Settled> result = new ArrayList<>();
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> e = it.next();
+            if (e.getValue().lastEvent > lastEventBefore)
+                break;
+            Pending p = e.getValue();
+            result.add(new Settled(e.getKey(), p.created, p.firstEvent));
+            firstEvents.computeIfPresent(p.firstEvent, (time, count) -> (count == 1) ? null : count - 1);
+            it.remove();
+        }
+        updated();
+        return result;
+    }
+
+    int size () {
+        return size;
+    }
+
+    // How long the oldest change not yet handed out has been waiting.
+    long lagMillis () {
+        long oldest = oldestEvent;
+        return (oldest == 0) ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+}
@@ -1,119 +1,547 @@
 package pl.edu.mimuw.kk408986;
 
 import java.io.*;
+import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.List;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.pl.PolishAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.tika.Tika;
-import org.apache.tika.exception.TikaException;
-import org.apache.tika.langdetect.OptimaizeLangDetector;
-import org.apache.tika.language.detect.LanguageResult;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 
 
-public class FileIndexer {
+public class FileIndexer implements Closeable {
+
+    private static final int MAX_IN_FLIGHT = 65535;   // Phaser's limit of registered parties
+
+    private static final Metrics.Histogram walkTime = Metrics.histogram("lucyna_walk_seconds");
+    private static final Metrics.Histogram parseTime = Metrics.histogram("lucyna_parse_seconds");
+    private static final Metrics.Histogram detectTime = Metrics.histogram("lucyna_detect_seconds");
+    private static final Metrics.Histogram addTime = Metrics.histogram("lucyna_add_seconds");
+    private static final Metrics.Counter indexedDocuments = Metrics.counter("lucyna_documents_indexed_total");
+
+    // Contents are analyzed from a Reader and stored separately, see indexFile. Offsets in the
+    // postings let the highlighter find hits without analyzing the stored text again.
+    // Lucene does not let a field change its index options, see IndexShards.checkSchema.
+    static final FieldType CONTENTS = new FieldType();
+    static {
+        CONTENTS.setTokenized(true);
+        CONTENTS.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        CONTENTS.freeze();
+    }
+
+    // Plain lowercased words of the stored head, for suggestions: no stems, no frequencies.
+    static final FieldType WORDS = new FieldType();
+    static {
+        WORDS.setTokenized(true);
+        WORDS.setIndexOptions(IndexOptions.DOCS);
+        WORDS.setOmitNorms(true);
+        WORDS.freeze();
+    }
+
+    // The same analyzers have to be used for indexing and for queries.
+    static Analyzer createAnalyzer () {
+        HashMap<String, Analyzer> analyzerMap = new HashMap<>();
+        analyzerMap.put("contentspl", new PolishAnalyzer());
+        analyzerMap.put("contentsen", new EnglishAnalyzer());
+        analyzerMap.put("wordspl", new StandardAnalyzer(PolishAnalyzer.getDefaultStopSet()));
+        analyzerMap.put("wordsen", new StandardAnalyzer(EnglishAnalyzer.ENGLISH_STOP_WORDS_SET));
+
+        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), analyzerMap);
+    }
 
     private Logger logger;
 
+    private final ContentExtractor extractor;
+    private final SkipList skipped;
+    private final TextCache texts;          // null when disabled
+    private final long maxFileSize;
+    private final boolean hashContents;
+    private final int storedChars;
+    private final int headSize;
+    private final ExecutorService workers;
+    private final Semaphore pending;        // backpressure between the walker and the workers
+    private final IndexLanes lanes;         // single files before walked trees
+
     public FileIndexer (Logger logger) {
+        this(logger, Settings.indexerThreads(), Settings.indexerQueueSize());
+    }
+
+    public FileIndexer (Logger logger, int threads, int queueSize) {
         this.logger = logger;
+        this.extractor = new ContentExtractor(Settings.detectionSampleSize(), threads + 1);  // the workers and the watcher
+        this.skipped = new SkipList(SkipList.defaultPath());
+        this.texts = openTextCache();
+        this.maxFileSize = Settings.parseMaxFileSize();
+        this.hashContents = Settings.contentHash();
+        this.storedChars = Settings.storedChars();
+        this.headSize = Math.max(storedChars, Settings.detectionSampleSize());
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "indexer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        int inFlight = Math.min(threads + queueSize, MAX_IN_FLIGHT);
+        this.pending = new Semaphore(inFlight);
+        this.lanes = new IndexLanes(Settings.bulkMBPerSec());
+
+        Metrics.gauge("lucyna_indexer_queued_files", () -> inFlight - pending.availablePermits());
     }
 
-    private String documentContentToString  (File file) throws IOException, TikaException {
-        Tika tika = new Tika();
-        return tika.parseToString(file);
+    private TextCache openTextCache () {
+        long mb = Settings.textCacheMB();
+        if (mb == 0)
+            return null;
+        try {
+            return new TextCache(TextCache.defaultPath(), mb * 1024 * 1024);
+        } catch (IOException e) {
+            logger.error("Text cache not available, every file gets parsed: ", e);
+            return null;
+        }
     }
 
-    private String langDetector (String s) {
-        OptimaizeLangDetector detector = new OptimaizeLangDetector();
-        detector.loadModels();
-        detector.addText(s.toCharArray(), 0, s.length());
-        List<LanguageResult> l = detector.detectAll();
+    // What the index remembers about a file, to tell whether it changed since.
+    private static class IndexedFile {
+        final long mtime;
+        final long size;
+        final BytesRef hash;
+
+        IndexedFile (long mtime, long size, BytesRef hash) {
+            this.mtime = mtime;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
 
-        return l.get(0).getLanguage();
+    private interface FileTask {
+        void run (Path file, BasicFileAttributes attrs) throws IOException;
     }
 
-    private void indexFile (IndexWriter writer, Path file, boolean updating) throws IOException, TikaException {
+    private static BytesRef contentHash (Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+            return new BytesRef(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // False if the file was left alone, as it is on the skip list and has not changed since.
+    private boolean indexFile (IndexWriter writer, Path file, BasicFileAttributes attrs, boolean updating) throws IOException {
+        if (skipped.skips(file, attrs))
+            return false;
 
-        String fileConversion = documentContentToString(new File(file.toString()));
         Document doc = new Document();
 
-        doc.add(new StringField("name", file.getFileName().toString(), Field.Store.YES));
+        // metadata is read from doc values, stored fields only hold the contents
+        doc.add(new StringField("name", file.getFileName().toString(), Field.Store.NO));
+        doc.add(new BinaryDocValuesField("name", new BytesRef(file.getFileName().toString())));
 
-        doc.add(new StringField("path", file.toString(), Field.Store.YES));
+        doc.add(new StringField("path", file.toString(), Field.Store.NO));
+        doc.add(new BinaryDocValuesField("path", new BytesRef(file.toString())));
 
-        if (langDetector(fileConversion).equals("pl"))
-            doc.add(new TextField("contentspl", fileConversion, Field.Store.YES));
-        else
-            doc.add(new TextField("contentsen", fileConversion, Field.Store.YES));
+        doc.add(new StringField("parent", String.valueOf(file.getParent()), Field.Store.NO));
+
+        // only in doc values, so that they can be updated without reindexing the file
+        doc.add(new NumericDocValuesField("mtime", attrs.lastModifiedTime().toMillis()));
+        doc.add(new NumericDocValuesField("size", attrs.size()));
+        // files too large to be parsed are not worth hashing for the text cache
+        boolean cached = texts != null && attrs.size() <= maxFileSize;
+        BytesRef digest = (hashContents || cached) ? contentHash(file) : null;
+        if (hashContents)
+            doc.add(new BinaryDocValuesField("hash", digest));
+
+        // A copy of contents seen before, under this path or another, is not parsed again.
+        TextCache.Entry known = cached ? texts.get(digest) : null;
+
+        // The text is never held in memory as a whole. Its head is read first, for language
+        // detection and to be stored for highlighting, then the rest streams into the analyzer.
+        long start = System.nanoTime();
+        try (Reader source = (known != null) ? known.reader() : extract(file, cached);
+             PushbackReader text = new PushbackReader(source, headSize)) {
+            char[] head = new char[headSize];
+            int length = read(text, head);
+            parseTime.recordSince(start);
+
+            start = System.nanoTime();
+            String language = (known != null) ? known.language : extractor.detectLanguage(head, length);
+            String field = language.equals("pl") ? "contentspl" : "contentsen";
+            detectTime.recordSince(start);
+
+            text.unread(head, 0, length);
+            doc.add(new Field(field, text, CONTENTS));
+            String stored = new String(head, 0, Math.min(length, storedChars));
+            doc.add(new StoredField(field, stored));
+            doc.add(new Field(SearchRequest.wordsField(field), stored, WORDS));
 
-        if (!updating) {
-            System.out.println("adding ... " + file);
-            writer.addDocument(doc);
-        } else {
-            System.out.println("updating ... " + file);
-            writer.updateDocument(new Term("path", file.toString()), doc);
+            // the parser is still running, the time includes extracting the rest of the text
+            start = System.nanoTime();
+            if (!updating) {
+                System.out.println("adding ... " + file);
+                writer.addDocument(doc);
+            } else {
+                System.out.println("updating ... " + file);
+                writer.updateDocument(new Term("path", file.toString()), doc);
+            }
+            addTime.recordSince(start);
+            indexedDocuments.inc();
+
+            // the analyzer has read the text to the end by now
+            if (source instanceof TextCache.Capture)
+                ((TextCache.Capture) source).store(digest, language);
+        } catch (ContentExtractor.LimitExceededException e) {
+            skipped.add(file, attrs, e.reason, e.getMessage());
+            // an older version of the file may still be in the index
+            if (updating)
+                writer.deleteDocuments(new Term("path", file.toString()));
+        }
+        return true;
+    }
+
+    // The text of the file as it is extracted, copied into the text cache on the way if asked to.
+    private Reader extract (Path file, boolean cached) throws IOException {
+        Reader text = extractor.open(file);
+        return cached ? texts.capture(text) : text;
+    }
+
+    // Fills buffer unless the text ends first, returns the number of characters read.
+    private static int read (Reader in, char[] buffer) throws IOException {
+        int length = 0;
+        int n;
+        while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) != -1)
+            length += n;
+        return length;
+    }
+
+    private void indexingFailed (Path file, Exception e) {
+        //don't index files, that can't be read or parsed, only count them.
+        logger.debug("{} not indexed: {}", file, e.toString());
+        Metrics.counter("lucyna_parse_failures_total", "mime", extractor.mimeType(file)).inc();
+    }
+
+    private void indexFile (IndexWriter writer, Path file, boolean updating) throws IOException {
+        indexFile(writer, file, Files.readAttributes(file, BasicFileAttributes.class), updating);
+    }
+
+    // Hands the file over to a worker, blocks while too many files are waiting for one.
+    private boolean submit (Path file, BasicFileAttributes attrs, FileTask task, Phaser walk) {
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        walk.register();
+        try {
+            workers.execute(() -> {
+                try {
+                    lanes.bulkTurn();
+                    task.run(file, attrs);
+                } catch (IOException | IllegalArgumentException e) {
+                    // the writer refuses documents it cannot take, an immense term for one
+                    indexingFailed(file, e);
+                } catch (AlreadyClosedException e) {
+                    // the writer was closed on exit, while the walk was being drained
+                } finally {
+                    pending.release();
+                    walk.arriveAndDeregister();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            walk.arriveAndDeregister();
+            return false;
+        }
+        return true;
+    }
+
+    // Runs task for every regular file under root and returns once all of them are done.
+    private void walk (Path root, FileTask task) throws IOException {
+        walk(root, Integer.MAX_VALUE, task);
+    }
+
+    // Only files at most maxDepth levels below root.
+    private void walk (Path root, int maxDepth, FileTask task) throws IOException {
+        Phaser walk = new Phaser(1);
+        long start = System.nanoTime();
+        try {
+            Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    // fifos, sockets and devices; directories show up here at maxDepth
+                    if (attrs.isOther() || attrs.isDirectory())
+                        return FileVisitResult.CONTINUE;
+                    return submit(file, attrs, task, walk) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            // wait for the workers, so that the caller may commit right away
+            walk.arriveAndAwaitAdvance();
+            walkTime.recordSince(start);
         }
     }
 
     public void indexAllFiles (IndexWriter writer, Path path, boolean updating) {
         try {
             if (Files.isDirectory(path)) {
-                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                        try {
-                            indexFile(writer, file, updating);
-                        } catch (IOException | TikaException ignore) {
-                            //don't index files, that can't be read or parsed.
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
+                walk(path, (file, attrs) -> {
+                    lanes.bulkRead(attrs.size());
+                    indexFile(writer, file, attrs, updating);
                 });
             } else {
-                indexFile(writer, path, updating);
+                // a single file is a live update, walked trees wait for it
+                lanes.liveStarted();
+                try {
+                    indexFile(writer, path, updating);
+                } catch (IOException | IllegalArgumentException e) {
+                    indexingFailed(path, e);
+                } finally {
+                    lanes.liveFinished();
+                }
             }
-        } catch (TikaException | IOException ignore) {
-            //don't index files, that can't be read or parsed.
+        } catch (IOException ignore) {
+            //walk could not be started, nothing to index.
+        }
+    }
+
+    // Brings the index up to date with the files under root, parsing only files
+    // that are new or whose modification time, size or (optionally) contents changed.
+    // Returns the number of changes made to the index.
+    public int reconcile (IndexWriter writer, Path root) {
+        try {
+            return reconcile(writer, indexedFiles(writer, root), Collections.singletonList(root), Integer.MAX_VALUE, root.toString());
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return 0;
+        }
+    }
+
+    // The same for the files lying directly in each of dirs, their subdirectories are left alone.
+    public int reconcileChildren (IndexWriter writer, Collection<Path> dirs) {
+        if (dirs.isEmpty())
+            return 0;
+        List<BytesRef> parents = new ArrayList<>();
+        for (Path dir : dirs)
+            parents.add(new BytesRef(dir.toString()));
+        try {
+            Map<String, IndexedFile> indexed = indexedFiles(writer, new TermInSetQuery("parent", parents));
+            return reconcile(writer, indexed, dirs, 1, dirs.size() + " directories");
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            return 0;
+        }
+    }
+
+    private int reconcile (IndexWriter writer, Map<String, IndexedFile> indexed, Collection<Path> dirs,
+                           int maxDepth, String what) throws IOException {
+        int total = indexed.size();
+        AtomicInteger parsed = new AtomicInteger();
+        AtomicInteger touched = new AtomicInteger();
+
+        FileTask task = (file, attrs) -> {
+            IndexedFile known = indexed.remove(file.toString());
+            long mtime = attrs.lastModifiedTime().toMillis();
+
+            if (known != null && known.size == attrs.size()) {
+                if (known.mtime == mtime)
+                    return;
+                if (known.hash != null) {
+                    lanes.bulkRead(attrs.size());       // hashing reads it all
+                    if (known.hash.equals(contentHash(file))) {
+                        // touched but not changed
+                        writer.updateNumericDocValue(new Term("path", file.toString()), "mtime", mtime);
+                        touched.incrementAndGet();
+                        return;
+                    }
+                }
+            }
+            lanes.bulkRead(attrs.size());
+            // by path even when new, a live update may have indexed it since the index was read
+            if (indexFile(writer, file, attrs, true))
+                parsed.incrementAndGet();
+        };
+        for (Path dir : dirs) {
+            if (Files.isDirectory(dir))
+                walk(dir, maxDepth, task);
+        }
+
+        // whatever was not seen during the walk is gone
+        for (String vanished : indexed.keySet()) {
+            writer.deleteDocuments(new Term("path", vanished));
+            System.out.println("deleting ... " + vanished);
+        }
+        int changes = parsed.get() + indexed.size() + touched.get();
+        // polled subtrees are reconciled over and over, mostly without changes
+        if (changes > 0)
+            logger.info("{} reconciled: {} indexed files, {} parsed, {} deleted.", what, total, parsed.get(), indexed.size());
+        else
+            logger.debug("{} reconciled: {} indexed files, nothing changed.", what, total);
+        return changes;
+    }
+
+    // Indexed files under root, read from doc values only.
+    private Map<String, IndexedFile> indexedFiles (IndexWriter writer, Path root) throws IOException {
+        String rootPath = root.toString();
+        String subtreePrefix = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+        Query subtree = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("path", rootPath)), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("path", subtreePrefix)), BooleanClause.Occur.SHOULD)
+                .build();
+        return indexedFiles(writer, subtree);
+    }
+
+    private Map<String, IndexedFile> indexedFiles (IndexWriter writer, Query files) throws IOException {
+        Map<String, IndexedFile> indexed = new ConcurrentHashMap<>();
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            new IndexSearcher(reader).search(files, new SimpleCollector() {
+                private LeafReader leaf;
+                private BinaryDocValues paths;
+                private NumericDocValues mtimes;
+                private NumericDocValues sizes;
+                private BinaryDocValues hashes;
+
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    leaf = context.reader();
+                    paths = DocValues.getBinary(leaf, "path");
+                    mtimes = DocValues.getNumeric(leaf, "mtime");
+                    sizes = DocValues.getNumeric(leaf, "size");
+                    hashes = DocValues.getBinary(leaf, "hash");
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    // documents indexed before these fields existed get reparsed
+                    String path = path(leaf, paths, doc);
+                    long mtime = mtimes.advanceExact(doc) ? mtimes.longValue() : -1;
+                    long size = sizes.advanceExact(doc) ? sizes.longValue() : -1;
+                    BytesRef hash = hashes.advanceExact(doc) ? BytesRef.deepCopyOf(hashes.binaryValue()) : null;
+
+                    indexed.put(path, new IndexedFile(mtime, size, hash));
+                }
+
+                @Override
+                public ScoreMode scoreMode() {
+                    return ScoreMode.COMPLETE_NO_SCORES;
+                }
+            });
         }
+        return indexed;
     }
 
+    // Path of a file document. Documents indexed before the doc values existed only have it stored.
+    static String path (LeafReader leaf, BinaryDocValues paths, int doc) throws IOException {
+        if (paths.advanceExact(doc))
+            return paths.binaryValue().utf8ToString();
+        return leaf.document(doc, Collections.singleton("path")).get("path");
+    }
+
+    // Documents of the file or of the whole subtree under path, directories included.
+    static Query subtreeQuery (Path path) {
+        String pathString = path.toString();
+        String subtreePrefix = pathString.endsWith(File.separator) ? pathString : pathString + File.separator;
+
+        return new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("path", pathString)), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("path", subtreePrefix)), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("directory", pathString)), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("directory", subtreePrefix)), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    // Deletes the file or the whole subtree under delPath, without reading the index.
     public void deleteDocs (IndexWriter writer, Path delPath, boolean updating) {
         String deletedPath = delPath.toString();
 
         try {
-            String index = System.getProperty("user.home") + "/.index";
-            IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
+            writer.deleteDocuments(subtreeQuery(delPath));
+            if (!updating)
+                System.out.println("deleting ... " + deletedPath);
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
 
-            for (int i = 0; i < reader.maxDoc(); i++) {
+    // Paths of the indexed files lying directly in dir.
+    public List<Path> indexedChildren (IndexWriter writer, Path dir) {
+        List<Path> children = new ArrayList<>();
 
-                Document doc = reader.document(i);
-                String path = doc.get("path");
-                String directory = doc.get("directory");
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            new IndexSearcher(reader).search(new TermQuery(new Term("parent", dir.toString())), new SimpleCollector() {
+                private LeafReader leaf;
+                private BinaryDocValues paths;
 
-                if (path != null && path.indexOf(deletedPath) == 0) {
-                    writer.deleteDocuments(new Term("path", path));
-                    if (!updating)
-                        System.out.println("deleting ... " + path);
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                    leaf = context.reader();
+                    paths = DocValues.getBinary(leaf, "path");
                 }
-                System.out.println("dir: " + directory);
-                if (directory != null && directory.equals(deletedPath)) {
-                    writer.deleteDocuments(new Term("directory", deletedPath));
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    children.add(Paths.get(path(leaf, paths, doc)));
                 }
-            }
-            reader.close();
+
+                @Override
+                public ScoreMode scoreMode() {
+                    return ScoreMode.COMPLETE_NO_SCORES;
+                }
+            });
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
         }
+        return children;
+    }
+
+    SkipList skipped () {
+        return skipped;
+    }
+
+    @Override
+    public void close () {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        extractor.close();
+        if (texts != null) {
+            try {
+                texts.close();
+            } catch (IOException e) {
+                logger.error("Low-level I/O error: ", e);
+            }
+        }
     }
 }
@@ -0,0 +1,63 @@
+package pl.edu.mimuw.kk408986;
+
+import java.io.InterruptedIOException;
+import org.apache.lucene.store.RateLimiter;
+
+// Two lanes of indexing work. Live updates of single files go first: while one is in
+// progress, bulk workers start no new file. Bulk reads are also held to lucyna.bulk.mbps,
+// so that a large tree being indexed leaves disk and CPU to the searcher and live updates.
+class IndexLanes {
+
+    private static final Metrics.Histogram bulkWait = Metrics.histogram("lucyna_bulk_wait_seconds");
+
+    private final RateLimiter.SimpleRateLimiter bulkRate;     // null for no limit
+    private int live = 0;
+
+    IndexLanes (double bulkMBPerSec) {
+        this.bulkRate = (bulkMBPerSec > 0) ? new RateLimiter.SimpleRateLimiter(bulkMBPerSec) : null;
+        Metrics.gauge("lucyna_indexer_live_files", this::live);
+    }
+
+    private synchronized long live () {
+        return live;
+    }
+
+    synchronized void liveStarted () {
+        live++;
+    }
+
+    synchronized void liveFinished () {
+        if (--live == 0)
+            notifyAll();
+    }
+
+    // Called by a bulk worker before it starts on the next file.
+    void bulkTurn () throws InterruptedIOException {
+        long start = System.nanoTime();
+        try {
+            synchronized (this) {
+                if (live == 0)
+                    return;
+                while (live > 0)
+                    wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for live updates");
+        }
+        bulkWait.recordSince(start);
+    }
+
+    // Called by a bulk worker before it reads bytes of a file, to parse or to hash it.
+    void bulkRead (long bytes) throws InterruptedIOException {
+        if (bulkRate == null)
+            return;
+        long start = System.nanoTime();
+        long paused;
+        synchronized (bulkRate) {       // one budget for all workers
+            paused = bulkRate.pause(bytes);
+        }
+        if (paused > 0)
+            bulkWait.recordSince(start);
+    }
+}
@@ -0,0 +1,482 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+// One index per indexed root, each in a directory of its own under the index directory and
+// with a writer of its own, so that work on one root never rewrites another root's segments.
+// The root of a shard is kept in its commit data, the directory name is random.
+// A new root is built in the staging directory and moved under base only once complete,
+// so searchers never see it half indexed and an interrupted build resumes where it stopped.
+class IndexShards implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(IndexShards.class);
+
+    private static final String ROOT = "root";
+    private static final String STAGING = "staging";
+
+    // The index has to be built again, nothing can be written to it as it is.
+    static class RebuildRequiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RebuildRequiredException (String message) {
+            super(message);
+        }
+    }
+
+    // Indexes root again from its files into a shard of its own, with directories, the ones
+    // indexed inside of it, recorded too. False if it could not be done.
+    interface Rebuild {
+        boolean build (Path root, List<Path> directories) throws IOException;
+    }
+
+    static class Shard {
+        final Path root;
+        final Path location;
+        final Directory directory;
+        private IndexWriter writer = null;
+
+        Shard (Path root, Path location, Directory directory) {
+            this.root = root;
+            this.location = location;
+            this.directory = directory;
+        }
+
+        // Opened on first use, so that a command working on one root leaves the others unlocked.
+        synchronized IndexWriter writer () throws IOException {
+            if (writer == null) {
+                checkSchema(location, directory);
+                writer = DirectoriesWatcher.createIndexWriter(directory);
+                if (writer == null)
+                    throw new IOException("IndexWriter of " + location + " not created due to previous error.");
+                writer.setLiveCommitData(Collections.singletonMap(ROOT, root.toString()).entrySet());
+            }
+            return writer;
+        }
+
+        // Fails while another process writes to the shard.
+        synchronized void checkUnlocked () throws IOException {
+            if (writer == null) {
+                try (Lock lock = directory.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+                    lock.ensureValid();
+                }
+            }
+        }
+
+        synchronized void commit () throws IOException {
+            if (writer != null && writer.hasUncommittedChanges())
+                writer.commit();
+        }
+
+        synchronized void closeWriter () throws IOException {
+            if (writer != null && writer.isOpen())
+                writer.close();
+            writer = null;
+        }
+
+        // Uncommitted changes are thrown away.
+        synchronized void discard () throws IOException {
+            try {
+                if (writer != null)
+                    writer.rollback();
+                writer = null;
+            } finally {
+                directory.close();
+            }
+        }
+
+        synchronized void close () throws IOException {
+            try {
+                closeWriter();
+            } finally {
+                directory.close();
+            }
+        }
+    }
+
+    private final Path base;
+    private final Path staging;     // has no commit of its own, so searchers do not list it
+    private final Map<Path, Shard> shards = new TreeMap<>();
+
+    IndexShards (Path base) throws IOException {
+        this.base = base;
+        this.staging = base.resolve(STAGING);
+        Files.createDirectories(base);
+
+        for (Path location : locations(base)) {
+            if (location.equals(base))
+                continue;       // the single index of old versions, see migrate
+            Shard shard = open(location);
+            if (shard != null)
+                shards.put(shard.root, shard);
+        }
+        Metrics.gauge("lucyna_index_shards", this::size);
+    }
+
+    // null when location is not a shard of any root
+    private static Shard open (Path location) throws IOException {
+        Directory directory = FSDirectory.open(location);
+        String root = SegmentInfos.readLatestCommit(directory).getUserData().get(ROOT);
+        if (root == null) {
+            logger.warn("{} is not a shard of any root, ignored.", location);
+            directory.close();
+            return null;
+        }
+        return new Shard(Paths.get(root), location, directory);
+    }
+
+    // Directories under base holding an index, base itself included when it holds one.
+    static List<Path> locations (Path base) throws IOException {
+        List<Path> locations = new ArrayList<>();
+        if (hasCommit(base))
+            locations.add(base);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(base, Files::isDirectory)) {
+            for (Path entry : entries) {
+                if (hasCommit(entry))
+                    locations.add(entry);
+            }
+        } catch (NoSuchFileException ignore) {
+            // nothing indexed yet
+        }
+        Collections.sort(locations);
+        return locations;
+    }
+
+    private static boolean hasCommit (Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, IndexFileNames.SEGMENTS + "_*")) {
+            return files.iterator().hasNext();
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return false;
+        }
+    }
+
+    // Contents indexed with other index options than FileIndexer.CONTENTS, by versions
+    // from before offsets were indexed. Lucene does not let a field change its index options,
+    // such an index would refuse every new document; it has to be built again.
+    static void checkSchema (Path location, Directory directory) throws IOException {
+        if (!DirectoryReader.indexExists(directory))
+            return;
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            if (!hasSchema(reader))
+                throw new RebuildRequiredException(location + " was indexed without offsets, rebuild required: "
+                        + "run --purge and --add " + String.join(", ", DirectoriesWatcher.indexedDirectories(reader))
+                        + " again.");
+        }
+    }
+
+    private static boolean hasSchema (IndexReader reader) {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            for (String field : SearchRequest.fields("all")) {
+                FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+                if (info != null && info.getIndexOptions() != FileIndexer.CONTENTS.indexOptions())
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Every shard, so that the daemon refuses to start rather than fail on each document.
+    // The single index of older versions is migrated before, whatever its schema.
+    synchronized void checkSchema () throws IOException {
+        for (Shard shard : shards.values())
+            checkSchema(shard.location, shard.directory);
+    }
+
+    synchronized int size () {
+        return shards.size();
+    }
+
+    synchronized List<Shard> all () {
+        return new ArrayList<>(shards.values());
+    }
+
+    synchronized Shard shard (Path root) {
+        return shards.get(root);
+    }
+
+    // The shard whose root contains path, or null.
+    synchronized Shard shardOf (Path path) {
+        for (Shard shard : shards.values()) {
+            if (path.startsWith(shard.root))
+                return shard;
+        }
+        return null;
+    }
+
+    // Shards whose roots lie inside dir.
+    synchronized List<Shard> shardsUnder (Path dir) {
+        List<Shard> under = new ArrayList<>();
+        for (Shard shard : shards.values()) {
+            if (shard.root.startsWith(dir))
+                under.add(shard);
+        }
+        return under;
+    }
+
+    // An empty shard for root, committed so that searchers and later runs find it.
+    synchronized Shard create (Path root) throws IOException {
+        Path location = base.resolve(UUID.randomUUID().toString());
+        Shard shard = new Shard(root, location, FSDirectory.open(location));
+        shard.writer().commit();
+        shards.put(root, shard);
+        return shard;
+    }
+
+    // The shard being built for root in the staging directory, null if there is none.
+    // Its last commit holds everything indexed up to the last checkpoint.
+    Shard staged (Path root) throws IOException {
+        Shard found = null;
+        for (Shard shard : staged()) {
+            if (found == null && shard.root.equals(root))
+                found = shard;
+            else
+                shard.directory.close();
+        }
+        return found;
+    }
+
+    // Builds interrupted and never resumed, they only go with --purge.
+    List<Shard> staged () throws IOException {
+        List<Shard> staged = new ArrayList<>();
+        for (Path location : locations(staging)) {
+            Shard shard = open(location);
+            if (shard != null)
+                staged.add(shard);
+        }
+        return staged;
+    }
+
+    // An empty shard for root in the staging directory.
+    Shard stage (Path root) throws IOException {
+        Path location = staging.resolve(UUID.randomUUID().toString());
+        Shard shard = new Shard(root, location, FSDirectory.open(location));
+        shard.writer().commit();
+        return shard;
+    }
+
+    // Moves a complete staged shard among the searched ones. A directory rename is atomic,
+    // the shard appears to searchers with all of its documents at once.
+    synchronized Shard publish (Shard staged) throws IOException {
+        staged.close();     // commits whatever is left
+        Path location = base.resolve(staged.location.getFileName());
+        Files.move(staged.location, location, StandardCopyOption.ATOMIC_MOVE);
+        Shard shard = new Shard(staged.root, location, FSDirectory.open(location));
+        shards.put(shard.root, shard);
+        return shard;
+    }
+
+    // Copies the documents of from into to, without parsing anything again.
+    void copy (Shard to, Shard from) throws IOException {
+        from.closeWriter();     // addIndexes locks the directory it copies from
+        to.writer().addIndexes(from.directory);
+    }
+
+    // Removing a root costs deleting its directory, the other shards are not touched.
+    void drop (Shard shard) throws IOException {
+        shard.checkUnlocked();
+        synchronized (this) {
+            shards.remove(shard.root, shard);
+        }
+        shard.discard();
+        deleteRecursively(shard.location);
+    }
+
+    // Shards of roots inside other roots, left when a root added around them was published
+    // but the process ended before they were dropped. Their documents are in the outer shard.
+    void dropNested () {
+        for (Shard shard : all()) {
+            for (Shard outer : all()) {
+                if (outer != shard && shard.root.startsWith(outer.root)) {
+                    try {
+                        drop(shard);
+                        logger.info("{} is a part of {}, its shard dropped.", shard.root, outer.root);
+                    } catch (IOException e) {
+                        logger.error("Low-level I/O error: ", e);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively (Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory (Path dir, IOException exc) throws IOException {
+                if (exc != null)
+                    throw exc;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    synchronized void commit () throws IOException {
+        for (Shard shard : shards.values())
+            shard.commit();
+    }
+
+    // Directories of the single index of older versions, empty if there is none. Read without
+    // a lock, so that --list shows them before the index is migrated.
+    List<String> legacyDirectories () throws IOException {
+        if (!hasCommit(base))
+            return Collections.emptyList();
+        try (Directory legacy = FSDirectory.open(base);
+             DirectoryReader reader = DirectoryReader.open(legacy)) {
+            return DirectoriesWatcher.indexedDirectories(reader);
+        }
+    }
+
+    // Turns the single index of older versions into a shard per root, and deletes it once
+    // every root has one. Segments with the current schema are split, with the other roots'
+    // documents hidden, so nothing is parsed again. Segments without offsets cannot be
+    // copied into a shard, their roots are indexed again by rebuild; that is resumed by the
+    // next run if interrupted, the old index is kept until then. Documents outside of every
+    // root had no directory to be reindexed from, they are dropped.
+    void migrate (Rebuild rebuild) throws IOException {
+        if (!hasCommit(base))
+            return;
+
+        try (Directory legacy = FSDirectory.open(base);
+             Lock lock = legacy.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+             DirectoryReader reader = DirectoryReader.open(legacy)) {
+            List<String> directories = DirectoriesWatcher.indexedDirectories(reader);
+            List<String> roots = DirectoriesWatcher.indexedRoots(directories);
+            if (hasSchema(reader)) {
+                logger.info("Splitting {} into {} shards.", base, roots.size());
+                split(reader, roots);
+            } else {
+                logger.info("{} was indexed without offsets, indexing its {} roots again.", base, roots.size());
+                for (String root : roots) {
+                    Path rootPath = Paths.get(root);
+                    List<Path> inner = new ArrayList<>();
+                    for (String dir : directories) {
+                        if (!dir.equals(root) && Paths.get(dir).startsWith(rootPath))
+                            inner.add(Paths.get(dir));
+                    }
+                    if (!rebuild.build(rootPath, inner))
+                        throw new IOException(root + " not indexed again, " + base + " is kept until it is.");
+                }
+            }
+            lock.ensureValid();
+            deleteLegacy(legacy);
+        }
+        Files.deleteIfExists(base.resolve(IndexWriter.WRITE_LOCK_NAME));
+        logger.info("{} migrated into shards.", base);
+    }
+
+    private void split (DirectoryReader reader, List<String> roots) throws IOException {
+        for (String root : roots) {
+            Path rootPath = Paths.get(root);
+            Shard shard = shard(rootPath);
+            if (shard == null)
+                shard = create(rootPath);
+            else
+                shard.writer().deleteAll();     // left by a migration that did not finish
+
+            List<CodecReader> parts = new ArrayList<>();
+            for (LeafReaderContext leaf : reader.leaves())
+                parts.add(subtree((CodecReader) leaf.reader(), rootPath));
+            shard.writer().addIndexes(parts.toArray(new CodecReader[0]));
+            shard.commit();
+        }
+    }
+
+    // The single index of older versions without splitting it, for --purge.
+    void dropLegacy () throws IOException {
+        if (!hasCommit(base))
+            return;
+        try (Directory legacy = FSDirectory.open(base);
+             Lock lock = legacy.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+            lock.ensureValid();
+            deleteLegacy(legacy);
+        }
+        Files.deleteIfExists(base.resolve(IndexWriter.WRITE_LOCK_NAME));
+    }
+
+    // The commit point goes first, so that a half deleted index is no longer an index.
+    private void deleteLegacy (Directory legacy) throws IOException {
+        List<String> files = new ArrayList<>();
+        for (String file : legacy.listAll()) {
+            if (Files.isRegularFile(base.resolve(file)) && !file.equals(IndexWriter.WRITE_LOCK_NAME))
+                files.add(file);
+        }
+        files.sort(Comparator.comparing((String file) -> !file.startsWith(IndexFileNames.SEGMENTS)));
+        for (String file : files)
+            legacy.deleteFile(file);
+    }
+
+    // The segment with every document outside of root hidden, as if deleted.
+    private static CodecReader subtree (CodecReader segment, Path root) throws IOException {
+        FixedBitSet keep = new FixedBitSet(segment.maxDoc());
+        new IndexSearcher(segment).search(FileIndexer.subtreeQuery(root), new SimpleCollector() {
+            @Override
+            public void collect (int doc) {
+                keep.set(doc);
+            }
+
+            @Override
+            public ScoreMode scoreMode () {
+                return ScoreMode.COMPLETE_NO_SCORES;
+            }
+        });
+        int count = keep.cardinality();
+
+        return new FilterCodecReader(segment) {
+            @Override
+            public Bits getLiveDocs () {
+                return keep;
+            }
+
+            @Override
+            public int numDocs () {
+                return count;
+            }
+
+            @Override
+            public CacheHelper getCoreCacheHelper () {
+                return null;
+            }
+
+            @Override
+            public CacheHelper getReaderCacheHelper () {
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close () throws IOException {
+        IOException failure = null;
+        for (Shard shard : shards.values()) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,296 @@
+package pl.edu.mimuw.kk408986;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide counters, gauges and latency histograms. Recording is a few LongAdder
+// increments, so they stay on in production. Everything is published over JMX as
+// pl.edu.mimuw.kk408986:type=Metrics and in the Prometheus text format on /metrics.
+final class Metrics {
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void inc () {
+            value.increment();
+        }
+
+        void add (long n) {
+            value.add(n);
+        }
+
+        long get () {
+            return value.sum();
+        }
+    }
+
+    static final class Histogram {
+        // bucket i counts durations of at most 2^i microseconds, the last one everything longer
+        private static final int BUCKETS = 28;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram () {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void recordSince (long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        void record (long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, micros - 1)));
+            buckets[bucket].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        long count () {
+            return count.sum();
+        }
+
+        private static double upperBoundSeconds (int bucket) {
+            return (1L << bucket) / 1e6;
+        }
+
+        // upper bound of the bucket holding the q-th quantile, in seconds
+        double percentile (double q) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return upperBoundSeconds(i);
+            }
+            return upperBoundSeconds(BUCKETS - 1);
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    // keyed by name and labels, e.g. lucyna_query_seconds{mode="term"}
+    private static final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    private Metrics () {
+    }
+
+    private static String key (String name, String... labels) {
+        if (labels.length == 0)
+            return name;
+
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            sb.append(labels[i]).append("=\"").append(value).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    // labels are given as name, value, name, value...
+    static Counter counter (String name, String... labels) {
+        return (Counter) metrics.computeIfAbsent(key(name, labels), k -> new Counter());
+    }
+
+    static Histogram histogram (String name, String... labels) {
+        return (Histogram) metrics.computeIfAbsent(key(name, labels), k -> new Histogram());
+    }
+
+    static void gauge (String name, LongSupplier value) {
+        metrics.put(key(name), value);
+    }
+
+    private static String name (String key) {
+        int brace = key.indexOf('{');
+        return (brace < 0) ? key : key.substring(0, brace);
+    }
+
+    // the key with one more label added
+    private static String withLabel (String key, String suffix, String label) {
+        int brace = key.indexOf('{');
+        if (brace < 0)
+            return key + suffix + "{" + label + "}";
+        return key.substring(0, brace) + suffix + key.substring(brace, key.length() - 1) + "," + label + "}";
+    }
+
+    private static String withSuffix (String key, String suffix) {
+        int brace = key.indexOf('{');
+        return (brace < 0) ? key + suffix : key.substring(0, brace) + suffix + key.substring(brace);
+    }
+
+    static String prometheus () {
+        StringBuilder sb = new StringBuilder();
+        String lastName = null;
+
+        for (Map.Entry<String, Object> e : metrics.entrySet()) {
+            String key = e.getKey();
+            Object metric = e.getValue();
+            String name = name(key);
+
+            if (!name.equals(lastName)) {
+                String type = (metric instanceof Counter) ? "counter" : (metric instanceof Histogram) ? "histogram" : "gauge";
+                sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                lastName = name;
+            }
+
+            if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                long cumulative = 0;
+                for (int i = 0; i < Histogram.BUCKETS; i++) {
+                    cumulative += h.buckets[i].sum();
+                    String le = (i == Histogram.BUCKETS - 1) ? "+Inf" : Double.toString(Histogram.upperBoundSeconds(i));
+                    sb.append(withLabel(key, "_bucket", "le=\"" + le + "\"")).append(' ').append(cumulative).append('\n');
+                }
+                sb.append(withSuffix(key, "_sum")).append(' ').append(h.sumNanos.sum() / 1e9).append('\n');
+                sb.append(withSuffix(key, "_count")).append(' ').append(cumulative).append('\n');
+            } else {
+                sb.append(key).append(' ').append(value(metric)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long value (Object metric) {
+        if (metric instanceof Counter)
+            return ((Counter) metric).get();
+        return ((LongSupplier) metric).getAsLong();
+    }
+
+    // Serves prometheus() on /metrics of an already created server.
+    static void publish (HttpServer server) {
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    // Starts a loopback-only /metrics endpoint when -Dlucyna.metrics.port is set.
+    static void publish () {
+        registerMBean();
+
+        int port = Integer.getInteger("lucyna.metrics.port", 0);
+        if (port <= 0)
+            return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            publish(server);
+            server.start();
+            logger.info("Metrics available on {}/metrics.", server.getAddress());
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    static synchronized void registerMBean () {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("pl.edu.mimuw.kk408986:type=Metrics");
+            if (!server.isRegistered(name))
+                server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            logger.error("Metrics not registered in JMX: ", e);
+        }
+    }
+
+    // Counters and gauges are attributes of their own, histograms have .count, .p50, .p95 and .p99.
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute (String attribute) throws AttributeNotFoundException {
+            int dot = attribute.lastIndexOf('.');
+            Object metric = metrics.get(attribute);
+            if (metric != null && !(metric instanceof Histogram))
+                return value(metric);
+
+            if (dot > 0 && metrics.get(attribute.substring(0, dot)) instanceof Histogram) {
+                Histogram h = (Histogram) metrics.get(attribute.substring(0, dot));
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return (double) h.count();
+                    case "p50":
+                        return h.percentile(0.50);
+                    case "p95":
+                        return h.percentile(0.95);
+                    case "p99":
+                        return h.percentile(0.99);
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes (String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ignore) {
+                    // skipped, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute (Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes (AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke (String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo () {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> e : metrics.entrySet()) {
+                if (e.getValue() instanceof Histogram) {
+                    for (String suffix : new String[] {"count", "p50", "p95", "p99"})
+                        attributes.add(new MBeanAttributeInfo(e.getKey() + "." + suffix, "double", suffix, true, false, false));
+                } else {
+                    attributes.add(new MBeanAttributeInfo(e.getKey(), "long", e.getKey(), true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Lucyna metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.search.ScoreDoc;
+
+// One query together with the settings it runs with.
+class SearchRequest {
+
+    // Where the previous page ended. For one field, its last hit. For "all", the last hit
+    // taken from each field, null for a field that had none on the pages so far, and the
+    // best score of each field, which that field's scores are divided by on every page.
+    static class Cursor {
+        final ScoreDoc[] after;
+        final float[] maxScores;    // null for a single field
+
+        Cursor (ScoreDoc[] after, float[] maxScores) {
+            this.after = after;
+            this.maxScores = maxScores;
+        }
+
+        static Cursor of (ScoreDoc last) {
+            return new Cursor(new ScoreDoc[] {last}, null);
+        }
+
+        // doc-score for one field; doc-score-max per field, or x-max for no hit yet, joined by dots
+        String encode () {
+            if (maxScores == null)
+                return hex(after[0].doc) + "-" + hex(after[0].score);
+
+            StringBuilder cursor = new StringBuilder();
+            for (int i = 0; i < after.length; i++) {
+                if (i > 0)
+                    cursor.append('.');
+                cursor.append((after[i] == null) ? "x-" : hex(after[i].doc) + "-" + hex(after[i].score) + "-");
+                cursor.append(hex(maxScores[i]));
+            }
+            return cursor.toString();
+        }
+
+        static Cursor decode (String cursor) {
+            String[] fields = cursor.split("\\.");
+            String[] first = fields[0].split("-");
+            if (fields.length == 1 && first.length == 2)
+                return of(new ScoreDoc(parseHex(first[0]), Float.intBitsToFloat(parseHex(first[1]))));
+
+            ScoreDoc[] after = new ScoreDoc[fields.length];
+            float[] maxScores = new float[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                String[] parts = fields[i].split("-");
+                if (parts.length == 2 && parts[0].equals("x")) {
+                    maxScores[i] = Float.intBitsToFloat(parseHex(parts[1]));
+                } else if (parts.length == 3) {
+                    after[i] = new ScoreDoc(parseHex(parts[0]), Float.intBitsToFloat(parseHex(parts[1])));
+                    maxScores[i] = Float.intBitsToFloat(parseHex(parts[2]));
+                } else {
+                    throw new IllegalArgumentException("bad cursor " + cursor);
+                }
+            }
+            return new Cursor(after, maxScores);
+        }
+
+        private static String hex (int value) {
+            return Integer.toHexString(value);
+        }
+
+        private static String hex (float value) {
+            return Integer.toHexString(Float.floatToIntBits(value));
+        }
+
+        private static int parseHex (String value) {
+            return Integer.parseUnsignedInt(value, 16);     // NumberFormatException is an IllegalArgumentException
+        }
+    }
+
+    final String query;
+    final String searchMode;        // term/phrase/fuzzy
+    final String language;          // en/pl/all
+    final int limit;                // page size (1...Integer.MAX_VALUE)
+    final Cursor after;             // end of the previous page, null for the first one
+    final int totalHitsThreshold;   // hits are counted exactly up to this many
+
+    SearchRequest (String query, String searchMode, String language, int limit) {
+        this(query, searchMode, language, limit, null, Settings.totalHitsThreshold());
+    }
+
+    SearchRequest (String query, String searchMode, String language, int limit, Cursor after, int totalHitsThreshold) {
+        this.query = query;
+        this.searchMode = searchMode;
+        this.language = language;
+        this.limit = limit;
+        this.after = after;
+        this.totalHitsThreshold = totalHitsThreshold;
+    }
+
+    SearchRequest nextPage (Cursor last) {
+        return new SearchRequest(query, searchMode, language, limit, last, totalHitsThreshold);
+    }
+
+    String field () {
+        return language.equals("pl") ? "contentspl" : "contentsen";
+    }
+
+    // "all" searches every language, each with its own analyzer
+    String[] fields () {
+        return fields(language);
+    }
+
+    static String[] fields (String language) {
+        if (language.equals("all"))
+            return new String[] {"contentsen", "contentspl"};
+        return new String[] {language.equals("pl") ? "contentspl" : "contentsen"};
+    }
+
+    // Unstemmed words of a contents field, which suggestions are made from.
+    static String wordsField (String field) {
+        return "words" + field.substring("contents".length());
+    }
+}
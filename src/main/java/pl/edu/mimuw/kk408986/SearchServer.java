@@ -0,0 +1,278 @@
+package pl.edu.mimuw.kk408986;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local HTTP endpoint answering queries concurrently.
+//
+//   POST /search  {"query": "...", "mode": "term", "lang": "en", "limit": 20, "details": true, "cursor": "..."}
+//   GET  /search?query=...&mode=term&lang=en&limit=20&details=true&cursor=...
+//
+// Answers with {"total": n, "exact": true, "took": millis, "next": "...",
+//               "hits": [{"path": "...", "score": s, "highlight": "..."}]},
+// "next" is passed back as "cursor" to get the following page. A query without hits may get
+// a "suggestion" of the words meant instead.
+//
+//   GET  /suggest?prefix=...&lang=en&limit=10
+//
+// Answers with {"suggestions": ["...", ...]}, completions of the last word of the prefix.
+// GET /metrics gives the metrics.
+class SearchServer {
+
+    private static Logger logger = LoggerFactory.getLogger(SearchServer.class);
+
+    private final SearchService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final PassageFormatter formatter = new DefaultPassageFormatter("<b>", "</b>", "...", false);
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    SearchServer (SearchService service, int port, int threads, int queueSize) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        // once the queue is full the accepting thread runs the query itself, which stops it accepting more
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "search-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        server.setExecutor(executor);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/suggest", this::handleSuggest);
+        Metrics.publish(server);
+        Metrics.registerMBean();
+    }
+
+    static void run (Path index, int port) {
+        try (SearchService service = new SearchService(index)) {
+            SearchServer server = new SearchServer(service, port, Settings.serverThreads(), Settings.serverQueueSize());
+            server.start();
+            logger.info("Listening on {}.", server.server.getAddress());
+
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop();
+                stopped.countDown();
+            }));
+            stopped.await();
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void start () {
+        server.start();
+    }
+
+    void stop () {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    int port () {
+        return server.getAddress().getPort();
+    }
+
+    private void handleSearch (HttpExchange exchange) throws IOException {
+        try {
+            JsonObject params;
+            if (exchange.getRequestMethod().equals("POST")) {
+                try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    params = requestObject(gson.fromJson(body, JsonElement.class));
+                }
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                params = queryParameters(exchange.getRequestURI().getRawQuery());
+            } else {
+                respond(exchange, 405, error("Only GET and POST are supported."));
+                return;
+            }
+
+            SearchRequest request = parseRequest(params);
+            boolean details = flag(params, "details");
+
+            long start = System.nanoTime();
+            SearchService.Results results = service.search(request, details ? formatter : null);
+            long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            respond(exchange, 200, toJson(results, took));
+        } catch (JsonParseException | IllegalArgumentException e) {
+            respond(exchange, 400, error("Malformed request: " + e.getMessage()));
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            respond(exchange, 500, error("Low-level I/O error."));
+        } catch (RuntimeException e) {
+            // answered anyway, the client would wait for its timeout otherwise
+            logger.error("Search failed: ", e);
+            respond(exchange, 500, error("Search failed."));
+        }
+    }
+
+    private void handleSuggest (HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error("Only GET is supported."));
+                return;
+            }
+            JsonObject params = queryParameters(exchange.getRequestURI().getRawQuery());
+            String prefix = string(params, "prefix", null);
+            if (prefix == null)
+                throw new IllegalArgumentException("no prefix given");
+
+            String language = string(params, "lang", "en");
+            int limit = integer(params, "limit", 10);
+            if (!language.equals("en") && !language.equals("pl") && !language.equals("all"))
+                throw new IllegalArgumentException("unknown language " + language);
+
+            JsonArray suggestions = new JsonArray();
+            for (String suggestion : service.suggest(prefix, language, limit))
+                suggestions.add(suggestion);
+            JsonObject response = new JsonObject();
+            response.add("suggestions", suggestions);
+            respond(exchange, 200, response);
+        } catch (JsonParseException | IllegalArgumentException e) {
+            respond(exchange, 400, error("Malformed request: " + e.getMessage()));
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+            respond(exchange, 500, error("Low-level I/O error."));
+        } catch (RuntimeException e) {
+            logger.error("Suggestion failed: ", e);
+            respond(exchange, 500, error("Suggestion failed."));
+        }
+    }
+
+    // A request body or batch line, anything but an object is malformed. Only what the
+    // client sent is checked here and in parseRequest, so that an exception from the search
+    // itself is a server error and not a bad request.
+    static JsonObject requestObject (JsonElement json) {
+        if (json == null || !json.isJsonObject())
+            throw new IllegalArgumentException("the request is not a JSON object");
+        return json.getAsJsonObject();
+    }
+
+    // Same settings and defaults as the interactive searcher.
+    static SearchRequest parseRequest (JsonObject params) {
+        String query = string(params, "query", null);
+        if (query == null)
+            throw new IllegalArgumentException("no query given");
+
+        String mode = string(params, "mode", "term");
+        String language = string(params, "lang", "en");
+        int limit = integer(params, "limit", Settings.pageSize());
+        String cursor = string(params, "cursor", null);
+        SearchRequest.Cursor after = (cursor == null) ? null : SearchRequest.Cursor.decode(cursor);
+
+        if (!mode.equals("term") && !mode.equals("phrase") && !mode.equals("fuzzy"))
+            throw new IllegalArgumentException("unknown mode " + mode);
+        if (!language.equals("en") && !language.equals("pl") && !language.equals("all"))
+            throw new IllegalArgumentException("unknown language " + language);
+        if (limit <= 0)
+            limit = Settings.pageSize();
+        if (after != null && after.after.length != SearchRequest.fields(language).length)
+            throw new IllegalArgumentException("the cursor is from a search with another lang than " + language);
+
+        return new SearchRequest(query, mode, language, limit, after, Settings.totalHitsThreshold());
+    }
+
+    // A member given as a string, number or boolean; missing or null gives null. Anything else,
+    // an object or an array, is a malformed request rather than an exception from Gson.
+    private static JsonPrimitive primitive (JsonObject params, String name) {
+        JsonElement value = params.get(name);
+        if (value == null || value.isJsonNull())
+            return null;
+        if (!value.isJsonPrimitive())
+            throw new IllegalArgumentException(name + " is not a string, number or boolean");
+        return value.getAsJsonPrimitive();
+    }
+
+    static String string (JsonObject params, String name, String defaultValue) {
+        JsonPrimitive value = primitive(params, name);
+        return (value == null) ? defaultValue : value.getAsString();
+    }
+
+    static int integer (JsonObject params, String name, int defaultValue) {
+        JsonPrimitive value = primitive(params, name);
+        return (value == null) ? defaultValue : value.getAsInt();     // NumberFormatException is an IllegalArgumentException
+    }
+
+    static boolean flag (JsonObject params, String name) {
+        JsonPrimitive value = primitive(params, name);
+        return value != null && value.getAsBoolean();
+    }
+
+    private static JsonObject queryParameters (String rawQuery) throws UnsupportedEncodingException {
+        JsonObject params = new JsonObject();
+        if (rawQuery == null)
+            return params;
+
+        Map<String, String> values = new HashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                values.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        for (Map.Entry<String, String> e : values.entrySet())
+            params.addProperty(e.getKey(), e.getValue());
+        return params;
+    }
+
+    static JsonObject toJson (SearchService.Results results, long took) {
+        JsonArray hits = new JsonArray();
+        for (SearchService.Hit hit : results.hits) {
+            JsonObject h = new JsonObject();
+            h.addProperty("path", hit.path);
+            h.addProperty("score", hit.score);
+            if (hit.highlight != null)
+                h.addProperty("highlight", hit.highlight);
+            hits.add(h);
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("total", results.totalHits);
+        response.addProperty("exact", results.totalHitsExact);
+        response.addProperty("took", took);
+        if (results.last != null)
+            response.addProperty("next", results.last.encode());
+        if (results.suggestion != null)
+            response.addProperty("suggestion", results.suggestion);
+        response.add("hits", hits);
+        return response;
+    }
+
+    private static JsonObject error (String message) {
+        JsonObject response = new JsonObject();
+        response.addProperty("error", message);
+        return response;
+    }
+
+    private void respond (HttpExchange exchange, int status, JsonObject body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.util.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs queries against the index, safe to share between threads.
+class SearchService implements Closeable {
+
+    static class Hit {
+        final String path;
+        final float score;
+        final String highlight;     // null when not asked for
+
+        Hit (String path, float score, String highlight) {
+            this.path = path;
+            this.score = score;
+            this.highlight = highlight;
+        }
+    }
+
+    static class Results {
+        final long totalHits;
+        final boolean totalHitsExact;   // otherwise totalHits is a lower bound
+        final List<Hit> hits;
+        final SearchRequest.Cursor last;    // cursor for the next page, null if this one is the last
+        final String suggestion;        // "did you mean" for a query without hits, or null
+
+        Results (TotalHits totalHits, List<Hit> hits, SearchRequest.Cursor last) {
+            this(totalHits.value, totalHits.relation == TotalHits.Relation.EQUAL_TO, hits, last, null);
+        }
+
+        private Results (long totalHits, boolean totalHitsExact, List<Hit> hits, SearchRequest.Cursor last, String suggestion) {
+            this.totalHits = totalHits;
+            this.totalHitsExact = totalHitsExact;
+            this.hits = hits;
+            this.last = last;
+            this.suggestion = suggestion;
+        }
+
+        Results withSuggestion (String suggestion) {
+            return new Results(totalHits, totalHitsExact, hits, last, suggestion);
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SearchService.class);
+
+    private static final Metrics.Counter cacheHits = Metrics.counter("lucyna_search_cache_hits_total");
+    private static final Metrics.Counter cacheMisses = Metrics.counter("lucyna_search_cache_misses_total");
+
+    private final ShardSearcherManager searcherManager;     // every shard of the index
+    private final ScheduledExecutorService refresher;
+    private final ExecutorService languageSearches;     // per-field parts of "all" queries
+    private final ExecutorService sliceSearches;        // segment slices of every query, null for one thread
+
+    // analyzers are thread-safe and costly to build, the Polish one above all
+    private final Analyzer analyzer = FileIndexer.createAnalyzer();
+    private final QueryBuilder queryBuilder = new QueryBuilder(analyzer);
+    private final Suggestions suggestions;
+
+    // least recently used results of the current searcher, keyed by the request
+    private final Map<List<Object>, Results> resultCache;
+
+    // A separate pool for slices, so that a thread waiting for its slices never holds the
+    // thread they need: "all" queries wait on language searches, which wait on slices.
+    private static ExecutorService searchPool (String name, int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread (Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    SearchService (Path index) throws IOException {
+        int threads = Settings.searchThreads();
+        this.languageSearches = searchPool("search", threads);
+        this.sliceSearches = (threads > 1) ? searchPool("search-slice", threads) : null;
+
+        try {
+            this.searcherManager = new ShardSearcherManager(index, new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher (IndexReader reader, IndexReader previousReader) {
+                    return new SlicedSearcher(reader, sliceSearches);
+                }
+            });
+        } catch (IOException e) {
+            close(languageSearches, sliceSearches);
+            throw e;
+        }
+        this.suggestions = new Suggestions(searcherManager, analyzer);
+
+        int cacheSize = Settings.resultCacheSize();
+        this.resultCache = Collections.synchronizedMap(new LinkedHashMap<List<Object>, Results>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<List<Object>, Results> eldest) {
+                return size() > cacheSize;
+            }
+        });
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh () {
+            }
+
+            @Override
+            public void afterRefresh (boolean didRefresh) {
+                // entries of the old searcher can no longer be hit
+                if (didRefresh) {
+                    resultCache.clear();
+                    suggestions.indexChanged();
+                }
+            }
+        });
+
+        // picks up new commits in the background, queries never wait for a reopen
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "searcher-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        long refreshInterval = Settings.searcherRefreshMillis();
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                logger.error("Low-level I/O error: ", e);
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Hits are highlighted with formatter, or not at all when it is null.
+    Results search (SearchRequest request, PassageFormatter formatter) throws IOException {
+        long start = System.nanoTime();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            // the reader generation makes results of an older searcher unreachable right away
+            long version = ShardSearcherManager.generation(searcher.getIndexReader());
+            List<Object> key = Arrays.asList(request.query, request.searchMode, request.language, request.limit,
+                    request.after == null ? null : request.after.encode(),
+                    request.totalHitsThreshold, formatter, version);
+            Results cached = resultCache.get(key);
+            if (cached != null) {
+                cacheHits.inc();
+                return cached;
+            }
+            cacheMisses.inc();
+
+            Results results = search(searcher, request, formatter);
+            if (results.totalHits == 0 && request.after == null)
+                results = results.withSuggestion(suggestions.didYouMean(searcher.getIndexReader(), request.query, request.language));
+            resultCache.put(key, results);
+            return results;
+        } finally {
+            searcherManager.release(searcher);
+            Metrics.histogram("lucyna_query_seconds", "mode", request.searchMode).recordSince(start);
+        }
+    }
+
+    // Completions of the last word of prefix, the most common words first.
+    List<String> suggest (String prefix, String language, int count) throws IOException {
+        return suggestions.complete(prefix, language, count);
+    }
+
+    private Results search (IndexSearcher searcher, SearchRequest request, PassageFormatter formatter) throws IOException {
+        if (request.fields().length > 1)
+            return searchAllLanguages(searcher, request, formatter);
+
+        String field = request.field();
+        Query parsed = query(request, field);
+
+        // the queue is sized to the page, not to the whole result set; one hit more tells
+        // whether there is a next page
+        int pageSize = Math.min(request.limit, Math.max(1, searcher.getIndexReader().maxDoc()));
+        ScoreDoc after = (request.after == null) ? null : request.after.after[0];
+        TopDocs fetched = page(searcher, parsed, after, request.totalHitsThreshold, pageSize + 1);
+        boolean more = fetched.scoreDocs.length > pageSize;
+        TopDocs topDocsResult = more ? new TopDocs(fetched.totalHits, Arrays.copyOf(fetched.scoreDocs, pageSize)) : fetched;
+
+        // stored fields and highlights are only loaded for the hits of this page
+        String[] highlights = null;
+        if (formatter != null)
+            highlights = highlightedSearchResults(topDocsResult, searcher, parsed, field, formatter);
+
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < topDocsResult.scoreDocs.length; i++) {
+            ScoreDoc scoreDoc = topDocsResult.scoreDocs[i];
+            String path = path(searcher, scoreDoc.doc);
+            hits.add(new Hit(path, scoreDoc.score, highlights == null ? null : highlights[i]));
+        }
+        SearchRequest.Cursor last = more ? SearchRequest.Cursor.of(topDocsResult.scoreDocs[pageSize - 1]) : null;
+        return new Results(topDocsResult.totalHits, hits, last);
+    }
+
+    // Every language field is searched concurrently. Scores are divided by the best score of
+    // their field, so that the fields' scales become comparable, and the pages are merged.
+    // The best score is the top hit of the field's first page and comes with the cursor
+    // after that, so every field is searched once per page.
+    private Results searchAllLanguages (IndexSearcher searcher, SearchRequest request, PassageFormatter formatter) throws IOException {
+        String[] fields = request.fields();
+        int pageSize = Math.min(request.limit, Math.max(1, searcher.getIndexReader().maxDoc()));
+        ScoreDoc[] after = (request.after == null) ? new ScoreDoc[fields.length] : request.after.after;
+
+        Query[] queries = new Query[fields.length];
+        List<Future<TopDocs>> pending = new ArrayList<>();
+        for (int i = 0; i < fields.length; i++) {
+            queries[i] = query(request, fields[i]);
+            Query query = queries[i];
+            ScoreDoc fieldAfter = after[i];
+            // the page may be made of one field's hits only
+            pending.add(languageSearches.submit(() -> page(searcher, query, fieldAfter, request.totalHitsThreshold, pageSize + 1)));
+        }
+
+        long totalHits = 0;
+        boolean exact = true;
+        TopDocs[] fieldPages = new TopDocs[fields.length];
+        float[] maxScores = new float[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fieldPages[i] = result(pending.get(i));
+            totalHits += fieldPages[i].totalHits.value;
+            exact &= fieldPages[i].totalHits.relation == TotalHits.Relation.EQUAL_TO;
+            if (request.after != null)
+                maxScores[i] = request.after.maxScores[i];
+            else if (fieldPages[i].scoreDocs.length > 0)
+                maxScores[i] = fieldPages[i].scoreDocs[0].score;
+        }
+
+        // Taken from the heads of the field pages, so that what a field gave is always a prefix
+        // of its page, whose last hit is the field's cursor. Equal scores go by doc id.
+        int[] taken = new int[fields.length];
+        List<ScoreDoc> page = new ArrayList<>();
+        boolean more = false;
+        while (true) {
+            int best = -1;
+            float bestScore = 0;
+            for (int i = 0; i < fields.length; i++) {
+                if (taken[i] == fieldPages[i].scoreDocs.length)
+                    continue;
+                ScoreDoc head = fieldPages[i].scoreDocs[taken[i]];
+                float score = (maxScores[i] > 0) ? head.score / maxScores[i] : head.score;
+                if (best < 0 || score > bestScore
+                        || (score == bestScore && head.doc < fieldPages[best].scoreDocs[taken[best]].doc)) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            if (best < 0)
+                break;
+            if (page.size() == pageSize) {
+                more = true;
+                break;
+            }
+            page.add(new ScoreDoc(fieldPages[best].scoreDocs[taken[best]].doc, bestScore, best));
+            taken[best]++;
+        }
+
+        String[] highlights = new String[page.size()];
+        if (formatter != null) {
+            for (int i = 0; i < fields.length; i++) {
+                List<Integer> positions = new ArrayList<>();
+                List<ScoreDoc> fieldHits = new ArrayList<>();
+                for (int j = 0; j < page.size(); j++) {
+                    if (page.get(j).shardIndex == i) {
+                        positions.add(j);
+                        fieldHits.add(page.get(j));
+                    }
+                }
+                if (fieldHits.isEmpty())
+                    continue;
+                TopDocs fieldPage = new TopDocs(new TotalHits(fieldHits.size(), TotalHits.Relation.EQUAL_TO),
+                        fieldHits.toArray(new ScoreDoc[0]));
+                String[] fieldHighlights = highlightedSearchResults(fieldPage, searcher, queries[i], fields[i], formatter);
+                for (int j = 0; j < positions.size(); j++)
+                    highlights[positions.get(j)] = fieldHighlights[j];
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < page.size(); i++)
+            hits.add(new Hit(path(searcher, page.get(i).doc), page.get(i).score, highlights[i]));
+
+        SearchRequest.Cursor last = null;
+        if (more) {
+            ScoreDoc[] next = after.clone();
+            for (int i = 0; i < fields.length; i++) {
+                if (taken[i] > 0)
+                    next[i] = fieldPages[i].scoreDocs[taken[i] - 1];
+            }
+            last = new SearchRequest.Cursor(next, maxScores);
+        }
+        TotalHits total = new TotalHits(totalHits, exact ? TotalHits.Relation.EQUAL_TO : TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO);
+        return new Results(total, hits, last);
+    }
+
+    // Searches the slices of the index in parallel, each one with a collector of its own.
+    private static TopDocs page (IndexSearcher searcher, Query query, ScoreDoc after, int totalHitsThreshold, int pageSize) throws IOException {
+        return searcher.search(query, new CollectorManager<TopScoreDocCollector, TopDocs>() {
+            @Override
+            public TopScoreDocCollector newCollector () {
+                return TopScoreDocCollector.create(pageSize, after, totalHitsThreshold);
+            }
+
+            @Override
+            public TopDocs reduce (Collection<TopScoreDocCollector> collectors) {
+                TopDocs[] pages = new TopDocs[collectors.size()];
+                int i = 0;
+                for (TopScoreDocCollector collector : collectors)
+                    pages[i++] = collector.topDocs();
+                // slices hold consecutive segments, so ties are still broken by doc id
+                return TopDocs.merge(0, pageSize, pages, true);
+            }
+        });
+    }
+
+    // Groups consecutive segments into slices of at least lucyna.search.slice.docs documents
+    // and at most lucyna.search.slice.segments segments. One slice per segment, as Lucene
+    // does by default, wastes threads on the many tiny segments of a live index.
+    private static class SlicedSearcher extends IndexSearcher {
+
+        SlicedSearcher (IndexReader reader, ExecutorService executor) {
+            super(reader, executor);
+        }
+
+        @Override
+        protected LeafSlice[] slices (List<LeafReaderContext> leaves) {
+            // called from the constructor, so no instance fields here
+            int minDocs = Settings.searchSliceDocs();
+            int maxSegments = Settings.searchSliceSegments();
+
+            List<LeafSlice> slices = new ArrayList<>();
+            List<LeafReaderContext> slice = new ArrayList<>();
+            long docs = 0;
+            for (LeafReaderContext leaf : leaves) {
+                slice.add(leaf);
+                docs += leaf.reader().maxDoc();
+                if (docs >= minDocs || slice.size() >= maxSegments) {
+                    slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[0])));
+                    slice.clear();
+                    docs = 0;
+                }
+            }
+            if (!slice.isEmpty())
+                slices.add(new LeafSlice(slice.toArray(new LeafReaderContext[0])));
+            return slices.toArray(new LeafSlice[0]);
+        }
+    }
+
+    private static TopDocs result (Future<TopDocs> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Built directly from the analyzed words, any characters are taken literally.
+    private Query query (SearchRequest request, String field) {
+        Query query;
+
+        if (request.searchMode.equals("term")) {
+            query = queryBuilder.createBooleanQuery(field, request.query);
+        } else if (request.searchMode.equals("phrase")) {
+            query = queryBuilder.createPhraseQuery(field, request.query);
+        } else {
+            // fuzzy terms are not stemmed, only normalized, e.g. lowercased
+            BooleanQuery.Builder words = new BooleanQuery.Builder();
+            for (String word : request.query.trim().split("\\s+")) {
+                if (!word.isEmpty())
+                    words.add(new FuzzyQuery(new Term(field, analyzer.normalize(field, word))), BooleanClause.Occur.SHOULD);
+            }
+            query = words.build();
+        }
+        // null when the query has nothing but stop words
+        return (query == null) ? new MatchNoDocsQuery() : query;
+    }
+
+    private static String path (IndexSearcher searcher, int doc) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        return FileIndexer.path(leaf.reader(), DocValues.getBinary(leaf.reader(), "path"), doc - leaf.docBase);
+    }
+
+    private String[] highlightedSearchResults (TopDocs hits, IndexSearcher searcher, Query query,
+                                               String field, PassageFormatter formatter) throws IOException {
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(searcher, analyzer);
+        highlighter.setFormatter(formatter);
+
+        return highlighter.highlight(field, query, hits, 5);    //number of maxPasses chosen according to ExampleProject, may be freely changed
+    }
+
+    private static void close (ExecutorService... pools) {
+        for (ExecutorService pool : pools) {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        refresher.shutdownNow();
+        close(languageSearches, sliceSearches);
+        try {
+            suggestions.close();
+            searcherManager.close();
+        } finally {
+            analyzer.close();
+        }
+    }
+}
@@ -1,20 +1,9 @@
 package pl.edu.mimuw.kk408986;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
-import org.apache.lucene.analysis.pl.PolishAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.index.*;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.*;
 import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
 import org.apache.lucene.search.uhighlight.PassageFormatter;
-import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.jline.builtins.Completers;
+import org.jline.reader.Candidate;
+import org.jline.reader.Completer;
 import org.jline.reader.EndOfFileException;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
@@ -26,30 +15,52 @@ import org.jline.utils.AttributedStyle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 
 public class Searcher {
 
-    private String language = "en";         // en/pl
+    private String language = "en";         // en/pl/all
     private String details = "off";         // on/off
-    private int limit = Integer.MAX_VALUE;  // (1...Integer.MAX_VALUE)
+    private int limit = Settings.pageSize();    // page size (1...Integer.MAX_VALUE)
     private String color = "off";           // on/off
     private String searchMode = "term";     // term/phrase/fuzzy
 
     private String bold = "\033[1m";        //ANSI bold code
     private String reset = "\033[0m";       //ANSI reset code
 
+    private SearchRequest lastRequest = null;   // page shown last, for %next
+    private SearchService.Results lastResults = null;
+
     private static Logger logger = LoggerFactory.getLogger(Searcher.class);
 
+    private static final List<String> COMMANDS = Arrays.asList("%term", "%phrase", "%fuzzy", "%next",
+            "%lang", "%color", "%details", "%limit");
+    private static final int COMPLETIONS = 20;
+
     public static void main (String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : Settings.serverPort();
+            SearchServer.run(indexPath(), port);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchSearcher.run(indexPath(), (args.length > 1) ? args[1] : "-");
+            return;
+        }
+        Metrics.registerMBean();
         Searcher s = new Searcher();
         s.openTerminal();
     }
 
+    static Path indexPath () {
+        return Paths.get(System.getProperty("user.home") + "/.index");
+    }
+
     private void openTerminal () {
-        try {
-            Directory indexDir = FSDirectory.open(Paths.get(System.getProperty("user.home") + "/.index"));
+        try (SearchService service = new SearchService(indexPath())) {
 
             try (Terminal terminal = TerminalBuilder.builder()
                     .nativeSignals(true)
@@ -59,7 +70,7 @@ public class Searcher {
                     .build()) {
                 LineReader lineReader = LineReaderBuilder.builder()
                         .terminal(terminal)
-                        .completer(new Completers.FileNameCompleter())
+                        .completer(completer(service))
                         .build();
 
                 while (true) {
@@ -67,7 +78,7 @@ public class Searcher {
                     try {
                         line = lineReader.readLine("> ");
 
-                        reactOnCommand(line, terminal, indexDir);
+                        reactOnCommand(line, terminal, service);
 
                     } catch (UserInterruptException | EndOfFileException e) {
                         break;
@@ -81,11 +92,31 @@ public class Searcher {
         }
     }
 
-    private void reactOnCommand (String command, Terminal terminal, Directory indexDir) {
-            if (command.substring(0, 1).equals("%"))
+    // Commands, or words of the index in the current language.
+    private Completer completer (SearchService service) {
+        return (reader, line, candidates) -> {
+            String word = line.word().substring(0, line.wordCursor());
+            if (line.wordIndex() == 0 && word.startsWith("%")) {
+                for (String command : COMMANDS)
+                    candidates.add(new Candidate(command));
+                return;
+            }
+            try {
+                for (String completion : service.suggest(word, language, COMPLETIONS))
+                    candidates.add(new Candidate(completion));
+            } catch (IOException e) {
+                logger.error("Low-level I/O error: ", e);
+            }
+        };
+    }
+
+    private void reactOnCommand (String command, Terminal terminal, SearchService service) {
+            if (command.equals("%next"))
+                nextPageCommand(terminal, service);
+            else if (command.substring(0, 1).equals("%"))
                 settingsCommand(command);
             else
-                searchCommand(command, terminal, indexDir);
+                searchCommand(command, terminal, service);
     }
 
     private void settingsCommand (String command) {
@@ -110,77 +141,52 @@ public class Searcher {
         }
     }
 
-    private void searchCommand (String command, Terminal terminal, Directory indexDir) {
-        try {
-            IndexReader reader = DirectoryReader.open(indexDir);
-            IndexSearcher searcher = new IndexSearcher(reader);
-            Analyzer analyzer = createAnalyzer();
-            QueryParser parser;
-            String field;
-
-            if (language.equals("pl")) {
-                parser = new QueryParser("contentspl", analyzer);
-                field = "contentspl";
-            } else {
-                parser = new QueryParser("contentsen", analyzer);
-                field = "contentsen";
-            }
+    private void searchCommand (String command, Terminal terminal, SearchService service) {
+        showPage(new SearchRequest(command, searchMode, language, limit), terminal, service);
+    }
 
-            Query parsed;
-
-            if (searchMode.equals("term")) {
-                TermQuery q = new TermQuery(new Term(field, command));
-                parsed = parser.parse(q.toString(field));
-            } else if (searchMode.equals("phrase")) {
-                String[] wordsTable = command.split(" ");
-                PhraseQuery q = new PhraseQuery(field, wordsTable);
-                parsed = parser.parse(q.toString(field));
-            } else {
-                FuzzyQuery q = new FuzzyQuery(new Term(field, command));
-                parsed = parser.parse(q.toString(field));
-            }
+    private void nextPageCommand (Terminal terminal, SearchService service) {
+        if (lastResults == null || lastResults.last == null) {
+            terminal.writer().println("No more results.");
+            return;
+        }
+        showPage(lastRequest.nextPage(lastResults.last), terminal, service);
+    }
 
-            TopDocs topDocsResult = searcher.search(parsed, limit);
-            String[] results = highlightedSearchResults(topDocsResult, searcher, analyzer, parsed);
-            displayResults(terminal, searcher, topDocsResult.scoreDocs, results, topDocsResult.totalHits.value);
+    private void showPage (SearchRequest request, Terminal terminal, SearchService service) {
+        try {
+            SearchService.Results results = service.search(request, details.equals("on") ? passageFormatter() : null);
+            displayResults(terminal, results);
 
+            lastRequest = request;
+            lastResults = results;
         } catch (IOException e) {
             logger.error("Low-level I/O error: ", e);
-        } catch (ParseException e) {
-            logger.error("Parsing exception: ", e);
         }
     }
 
-    private String[] highlightedSearchResults (TopDocs hits, IndexSearcher searcher, Analyzer analyzer, Query query) throws IOException {
-        String red = "\033[31m";        //ANSI red color code
-        String field = "contentsen";
-
-        UnifiedHighlighter highlighter = new UnifiedHighlighter(searcher, analyzer);
-        PassageFormatter formatterColor = new DefaultPassageFormatter(red, reset, "...", false);
-        PassageFormatter formatterSimple = new DefaultPassageFormatter(bold, reset, "...", false);
+    // the same instances every time, so that cached results can be reused
+    private final PassageFormatter boldFormatter = new DefaultPassageFormatter(bold, reset, "...", false);
+    private final PassageFormatter redFormatter = new DefaultPassageFormatter("\033[31m", reset, "...", false);  //ANSI red color code
 
+    private PassageFormatter passageFormatter () {
         if (color.equals("on"))
-            highlighter.setFormatter(formatterColor);
+            return redFormatter;
         else
-            highlighter.setFormatter(formatterSimple);
-
-        if (language.equals("pl"))
-            field = "contentspl";
-
-        return highlighter.highlight(field, query, hits, 5);    //number of maxPasses chosen according to ExampleProject, may be freely changed
+            return boldFormatter;
     }
 
-    private void displayResults (Terminal terminal, IndexSearcher searcher, ScoreDoc[] scoreDocResults, String[] results, long hits) throws IOException {
+    private void displayResults (Terminal terminal, SearchService.Results results) {
 
         terminal.writer()
                 .println(new AttributedStringBuilder().append("Files count: ")
                         .style(AttributedStyle.DEFAULT.bold())
-                        .append(Long.toString(hits))
+                        .append(Long.toString(results.totalHits) + (results.totalHitsExact ? "" : "+"))
                         .toAnsi());
 
-        for (int i = 0; i < results.length; i++) {
+        for (SearchService.Hit hit : results.hits) {
 
-            String name = bold + searcher.doc(scoreDocResults[i].doc).get("path") + reset + "\n";
+            String name = bold + hit.path + reset + "\n";
             terminal.writer()
                     .println(new AttributedStringBuilder()
                             .append(name));
@@ -189,20 +195,15 @@ public class Searcher {
                 terminal.writer()
                         .println(new AttributedStringBuilder()
                                 .style(AttributedStyle.DEFAULT.boldDefault())
-                                .append(results[i])
+                                .append(hit.highlight)
                                 .toAnsi());
             }
         }
-    }
 
-    private Analyzer createAnalyzer () {
-        HashMap<String, Analyzer> analyzerMap = new HashMap<>();
-        analyzerMap.put("contentspl", new PolishAnalyzer());
-        analyzerMap.put("contentsen", new EnglishAnalyzer());
-
-        return new PerFieldAnalyzerWrapper(new StandardAnalyzer(), analyzerMap);
+        if (results.suggestion != null)
+            terminal.writer().println("Did you mean: " + results.suggestion + "?");
+        if (results.last != null)
+            terminal.writer().println("%next shows more.");
     }
 
 }
-
-
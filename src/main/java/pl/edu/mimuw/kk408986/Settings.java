@@ -0,0 +1,194 @@
+package pl.edu.mimuw.kk408986;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Tunables read from system properties (-Dlucyna.<name>=<value>).
+final class Settings {
+
+    private Settings () {
+    }
+
+    private static int positiveInt (String name, int defaultValue) {
+        return Math.max(1, Integer.getInteger(name, defaultValue));
+    }
+
+    static int indexerThreads () {
+        return positiveInt("lucyna.indexer.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    // files walked but not yet parsed, the walker blocks above this
+    static int indexerQueueSize () {
+        return positiveInt("lucyna.indexer.queue", 256);
+    }
+
+    // characters of each document fed to the language detector
+    static int detectionSampleSize () {
+        return positiveInt("lucyna.detect.sample", 4096);
+    }
+
+    // watcher commits at most this long after the first uncommitted change...
+    static long commitIntervalMillis () {
+        return positiveInt("lucyna.commit.interval", 1000);
+    }
+
+    // ...or as soon as this many changes are pending
+    static int commitMaxChanges () {
+        return positiveInt("lucyna.commit.changes", 1000);
+    }
+
+    // watcher handles a path once no event arrived for it for this long
+    static long watchQuietMillis () {
+        return positiveInt("lucyna.watch.quiet", 500);
+    }
+
+    // store a SHA-256 of every file, so that touched but unchanged files are not parsed again
+    static boolean contentHash () {
+        return Boolean.getBoolean("lucyna.hash");
+    }
+
+    // how often the searcher checks for a new commit
+    static long searcherRefreshMillis () {
+        return positiveInt("lucyna.search.refresh", 1000);
+    }
+
+    static int serverPort () {
+        return positiveInt("lucyna.server.port", 8080);
+    }
+
+    static int serverThreads () {
+        return positiveInt("lucyna.server.threads", 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    // queries run at once by Searcher --batch
+    static int batchThreads () {
+        return positiveInt("lucyna.batch.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    // queries waiting for a server thread before new connections stop being accepted
+    static int serverQueueSize () {
+        return positiveInt("lucyna.server.queue", 1024);
+    }
+
+    // hits shown at once by the interactive searcher and returned by default by the server
+    static int pageSize () {
+        return positiveInt("lucyna.search.page", 20);
+    }
+
+    // hits are counted exactly up to this many, above it the count is a lower bound
+    static int totalHitsThreshold () {
+        return positiveInt("lucyna.search.count", 1000);
+    }
+
+    // files larger than this are not parsed at all
+    static long parseMaxFileSize () {
+        return Math.max(1, Long.getLong("lucyna.parse.size", 256L * 1024 * 1024));
+    }
+
+    static long parseTimeoutMillis () {
+        return positiveInt("lucyna.parse.timeout", 60000);
+    }
+
+    // extracted text is cut off after this many characters; it is streamed into the index,
+    // so whole documents are indexed unless this is set
+    static int parseMaxChars () {
+        return positiveInt("lucyna.parse.chars", Integer.MAX_VALUE);
+    }
+
+    // comma separated MIME types parsed in a separate JVM, e.g. application/pdf
+    static Set<String> parseForkedTypes () {
+        Set<String> types = new HashSet<>();
+        for (String type : System.getProperty("lucyna.parse.fork", "").split(",")) {
+            if (!type.trim().isEmpty())
+                types.add(type.trim());
+        }
+        return types;
+    }
+
+    // parser threads still running after their file was given up on; once this many are,
+    // further files are skipped instead of parsed in this JVM
+    static int parseMaxStuck () {
+        return positiveInt("lucyna.parse.stuck", indexerThreads());
+    }
+
+    // heap of each forked parser JVM
+    static String parseForkHeap () {
+        return System.getProperty("lucyna.parse.fork.heap", "512m");
+    }
+
+    // characters of each document kept in the index for highlighting, the rest is only searchable
+    static int storedChars () {
+        return positiveInt("lucyna.store.chars", 100000);
+    }
+
+    // "best" for smaller stored fields, "speed" for faster loading of them
+    static boolean bestCompression () {
+        return !System.getProperty("lucyna.index.compression", "best").equals("speed");
+    }
+
+    // directories watched for events at most, subtrees beyond it are polled
+    static int watchMaxDirectories () {
+        return positiveInt("lucyna.watch.max", Integer.MAX_VALUE);
+    }
+
+    // how often subtrees that could not be watched are compared with the index
+    static long watchPollMillis () {
+        return positiveInt("lucyna.watch.poll", 60000);
+    }
+
+    // Polls look at directory mtimes only, which a file changed in place leaves as they are;
+    // every this many polls the polled subtrees are reconciled file by file.
+    static int watchFullPollEvery () {
+        return positiveInt("lucyna.watch.poll.full", 60);
+    }
+
+    // results kept per searcher for repeated queries, 0 turns the cache off
+    static int resultCacheSize () {
+        return Math.max(0, Integer.getInteger("lucyna.search.cache", 1000));
+    }
+
+    // threads running parts of a single query, shared by all queries, 1 searches segments one by one
+    static int searchThreads () {
+        return positiveInt("lucyna.search.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    static int searchSliceDocs () {
+        return positiveInt("lucyna.search.slice.docs", 250000);
+    }
+
+    static int searchSliceSegments () {
+        return positiveInt("lucyna.search.slice.segments", 5);
+    }
+
+    // Lucene's 5 GB default lets a large index end up as one huge segment and a few small
+    // ones, which searches no faster on many cores than on one.
+    static double mergeMaxSegmentMB () {
+        return positiveInt("lucyna.merge.segment.mb", 1024);
+    }
+
+    static double mergeSegmentsPerTier () {
+        return positiveInt("lucyna.merge.tier", 10);
+    }
+
+    // Suggestions are rebuilt at most this often while the index keeps changing, and less
+    // often for an index whose rebuild takes more than a fiftieth of it.
+    static long suggestRebuildMillis () {
+        return positiveInt("lucyna.suggest.rebuild", 10000);
+    }
+
+    // texts of parsed files kept by content hash, so that copies are not parsed again; off (0)
+    // by default, as every file is then hashed before it is parsed and so read twice
+    static long textCacheMB () {
+        return Math.max(0, Long.getLong("lucyna.dedup.mb", 0));
+    }
+
+    // bytes read by bulk work (tree walks, reconciliation) in MB/s, 0 for no limit
+    static double bulkMBPerSec () {
+        return Math.max(0, Integer.getInteger("lucyna.bulk.mbps", 0));
+    }
+
+    // bulk work (--add, --reindex, reconciliation) commits this often, so that it resumes from there
+    static long checkpointMillis () {
+        return 1000L * positiveInt("lucyna.bulk.checkpoint", 60);
+    }
+}
@@ -0,0 +1,165 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Searches every shard under the index directory as one MultiReader. A refresh opens the
+// shards added since, reopens the changed ones and lets go of the dropped ones; the readers
+// of unchanged shards are shared with the previous searcher.
+class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private static final AtomicLong generations = new AtomicLong();
+
+    // The shards as seen by one refresh, the generation tells refreshes apart.
+    static class ShardsReader extends MultiReader {
+        final long generation;
+
+        ShardsReader (IndexReader[] shards) throws IOException {
+            super(shards, false);   // the shards' readers are shared, they only get referenced
+            this.generation = generations.incrementAndGet();
+        }
+    }
+
+    private final Path base;
+    private final SearcherFactory factory;
+
+    // only used under the refresh lock, each reader referenced once by the manager
+    private final Map<Path, Directory> directories = new TreeMap<>();
+    private final Map<Path, DirectoryReader> readers = new TreeMap<>();
+
+    ShardSearcherManager (Path base, SearcherFactory factory) throws IOException {
+        this.base = base;
+        this.factory = factory;
+        try {
+            update();
+            current = newSearcher();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    static long generation (IndexReader reader) {
+        return ((ShardsReader) reader).generation;
+    }
+
+    private IndexSearcher newSearcher () throws IOException {
+        IndexReader reader = new ShardsReader(readers.values().toArray(new IndexReader[0]));
+        boolean success = false;
+        try {
+            IndexSearcher searcher = factory.newSearcher(reader, null);
+            success = true;
+            return searcher;
+        } finally {
+            if (!success)
+                reader.decRef();
+        }
+    }
+
+    // Brings the readers in line with the shards on disk, returns false if nothing changed.
+    private boolean update () throws IOException {
+        boolean changed = false;
+        Set<Path> present = new HashSet<>(IndexShards.locations(base));
+
+        Iterator<Map.Entry<Path, DirectoryReader>> it = readers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, DirectoryReader> entry = it.next();
+            Path location = entry.getKey();
+            DirectoryReader reader = entry.getValue();
+            DirectoryReader reopened = null;
+            if (present.remove(location)) {
+                try {
+                    reopened = DirectoryReader.openIfChanged(reader);
+                    if (reopened == null)
+                        continue;
+                } catch (NoSuchFileException | IndexNotFoundException e) {
+                    // dropped while being reopened
+                }
+            }
+
+            if (reopened == null) {
+                // searchers still using the shard keep it open, the directory goes with the last one
+                Directory directory = directories.remove(location);
+                reader.getReaderCacheHelper().addClosedListener(key -> directory.close());
+                it.remove();
+            } else {
+                entry.setValue(reopened);
+            }
+            reader.decRef();
+            changed = true;
+        }
+
+        for (Path location : present) {
+            Directory directory = FSDirectory.open(location);
+            try {
+                readers.put(location, DirectoryReader.open(directory));
+                directories.put(location, directory);
+                changed = true;
+            } catch (NoSuchFileException | IndexNotFoundException e) {
+                directory.close();      // dropped right after it was listed
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded (IndexSearcher referenceToRefresh) throws IOException {
+        return update() ? newSearcher() : null;
+    }
+
+    @Override
+    protected void decRef (IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected boolean tryIncRef (IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount (IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    @Override
+    protected void afterClose () throws IOException {
+        release();
+    }
+
+    private void release () throws IOException {
+        IOException failure = null;
+        for (DirectoryReader reader : readers.values()) {
+            try {
+                reader.decRef();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        for (Directory directory : directories.values()) {
+            try {
+                directory.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        readers.clear();
+        directories.clear();
+        if (failure != null)
+            throw failure;
+    }
+}
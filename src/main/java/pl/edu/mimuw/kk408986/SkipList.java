@@ -0,0 +1,95 @@
+package pl.edu.mimuw.kk408986;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Files the extractor gave up on, one "path \t mtime \t size \t reason" line each.
+// A listed file is not parsed again until it changes or the list is cleared with --retry.
+class SkipList {
+
+    static class Entry {
+        final String path;
+        final long mtime;
+        final long size;
+        final String reason;
+
+        private Entry (String path, long mtime, long size, String reason) {
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.reason = reason;
+        }
+    }
+
+    private static Logger logger = LoggerFactory.getLogger(SkipList.class);
+
+    private final Path file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    SkipList (Path file) {
+        this.file = file;
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4)
+                    entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+            }
+        } catch (NoSuchFileException ignore) {
+            // nothing skipped yet
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Skip list " + file + " not read: ", e);
+        }
+    }
+
+    static Path defaultPath () {
+        return Paths.get(System.getProperty("user.home") + "/.index-skipped");
+    }
+
+    // True if the file was skipped before and has not changed since.
+    synchronized boolean skips (Path path, BasicFileAttributes attrs) {
+        Entry e = entries.get(path.toString());
+        return e != null && e.mtime == attrs.lastModifiedTime().toMillis() && e.size == attrs.size();
+    }
+
+    synchronized void add (Path path, BasicFileAttributes attrs, String reason, String message) {
+        Entry e = new Entry(path.toString(), attrs.lastModifiedTime().toMillis(), attrs.size(), reason + ": " + message);
+        entries.put(e.path, e);
+        Metrics.counter("lucyna_skipped_files_total", "reason", reason).inc();
+        logger.warn("Skipping {}.", message);
+
+        // appended, a later line for the same path wins when the list is read
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(e.path + "\t" + e.mtime + "\t" + e.size + "\t" + e.reason.replace('\n', ' '));
+            out.newLine();
+        } catch (IOException ex) {
+            logger.error("Low-level I/O error: ", ex);
+        }
+    }
+
+    synchronized List<Entry> entries () {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized void clear () {
+        entries.clear();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.spell.HighFrequencyDictionary;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Completions of the word being typed and corrections of queries that found nothing, both
+// made from the unstemmed words fields. Completions are looked up in an FST per language,
+// rebuilt in the background when the index changes; corrections come from the index terms.
+class Suggestions implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(Suggestions.class);
+
+    private static final Metrics.Histogram buildTime = Metrics.histogram("lucyna_suggest_build_seconds");
+
+    // a rebuild is followed by at least this many times its own duration without one
+    private static final int REBUILD_PAUSE_FACTOR = 50;
+
+    private final ReferenceManager<IndexSearcher> searcherManager;
+    private final Analyzer analyzer;
+    private final Directory tempDir;        // the FST build sorts its input there
+    private final ScheduledExecutorService builder;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final DirectSpellChecker spellChecker = new DirectSpellChecker();
+
+    private volatile Map<String, Lookup> lookups = Collections.emptyMap();     // by contents field
+    private long builtGeneration = -1;      // only used by the builder thread
+    private volatile long lastBuildMillis = 0;
+
+    Suggestions (ReferenceManager<IndexSearcher> searcherManager, Analyzer analyzer) throws IOException {
+        this.searcherManager = searcherManager;
+        this.analyzer = analyzer;
+        this.tempDir = FSDirectory.open(Paths.get(System.getProperty("java.io.tmpdir")));
+        this.builder = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "suggest-build");
+            t.setDaemon(true);
+            return t;
+        });
+        builder.execute(this::build);
+    }
+
+    // Called after a refresh found changes. A burst of them is taken in by a single rebuild.
+    // The lookups are rebuilt from the whole vocabulary, so the pause grows with the time that
+    // takes, and a large index being written to keeps the searcher busy for a small share of it.
+    void indexChanged () {
+        if (scheduled.compareAndSet(false, true)) {
+            long delay = Math.max(Settings.suggestRebuildMillis(), REBUILD_PAUSE_FACTOR * lastBuildMillis);
+            builder.schedule(this::build, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Words are weighted by the number of documents they occur in.
+    private void build () {
+        scheduled.set(false);
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                IndexReader reader = searcher.getIndexReader();
+                long generation = ShardSearcherManager.generation(reader);
+                if (generation == builtGeneration)
+                    return;
+
+                long start = System.nanoTime();
+                Map<String, Lookup> built = new HashMap<>();
+                for (String field : SearchRequest.fields("all")) {
+                    String words = SearchRequest.wordsField(field);
+                    WFSTCompletionLookup lookup = new WFSTCompletionLookup(tempDir, "suggest-" + words);
+                    lookup.build(new HighFrequencyDictionary(reader, words, 0f));
+                    built.put(field, lookup);
+                }
+                lookups = built;
+                builtGeneration = generation;
+                buildTime.recordSince(start);
+                lastBuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            logger.error("Low-level I/O error: ", e);
+        }
+    }
+
+    // The last word of prefix completed, the most common words first.
+    List<String> complete (String prefix, String language, int count) throws IOException {
+        int split = prefix.length();
+        while (split > 0 && !Character.isWhitespace(prefix.charAt(split - 1)))
+            split--;
+        String before = prefix.substring(0, split);
+        String word = prefix.substring(split).toLowerCase(Locale.ROOT);
+        if (word.isEmpty() || count <= 0)
+            return Collections.emptyList();
+
+        List<Lookup.LookupResult> found = new ArrayList<>();
+        Map<String, Lookup> current = lookups;
+        for (String field : SearchRequest.fields(language)) {
+            Lookup lookup = current.get(field);
+            if (lookup != null)
+                found.addAll(lookup.lookup(word, false, count));
+        }
+        found.sort((a, b) -> Long.compare(b.value, a.value));
+
+        Set<String> completions = new LinkedHashSet<>();
+        for (Lookup.LookupResult result : found) {
+            if (completions.size() == count)
+                break;
+            completions.add(before + result.key);
+        }
+        return new ArrayList<>(completions);
+    }
+
+    // The query with the words missing from the index replaced by the closest ones found in it,
+    // or null when no word could be corrected.
+    String didYouMean (IndexReader reader, String query, String language) throws IOException {
+        String[] fields = SearchRequest.fields(language);
+        StringBuilder corrected = new StringBuilder();
+        boolean changed = false;
+
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            String correction = correction(reader, word, fields);
+            if (correction != null)
+                changed = true;
+            if (corrected.length() > 0)
+                corrected.append(' ');
+            corrected.append(correction == null ? word : correction);
+        }
+        return changed ? corrected.toString() : null;
+    }
+
+    private String correction (IndexReader reader, String word, String[] fields) throws IOException {
+        SuggestWord best = null;
+        for (String field : fields) {
+            String words = SearchRequest.wordsField(field);
+            String analyzed = firstTerm(words, word);
+            if (analyzed == null)
+                return null;        // a stop word or punctuation, nothing to correct
+            Term term = new Term(words, analyzed);
+            if (reader.docFreq(term) > 0)
+                return null;        // known in one of the languages
+
+            for (SuggestWord suggestion : spellChecker.suggestSimilar(term, 1, reader)) {
+                if (best == null || suggestion.score > best.score
+                        || (suggestion.score == best.score && suggestion.freq > best.freq))
+                    best = suggestion;
+            }
+        }
+        return (best == null) ? null : best.string;
+    }
+
+    private String firstTerm (String field, String word) throws IOException {
+        try (TokenStream tokens = analyzer.tokenStream(field, word)) {
+            CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            String first = tokens.incrementToken() ? term.toString() : null;
+            tokens.end();
+            return first;
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        builder.shutdownNow();
+        tempDir.close();
+    }
+}
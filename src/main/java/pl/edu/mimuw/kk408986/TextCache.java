@@ -0,0 +1,215 @@
+package pl.edu.mimuw.kk408986;
+
+import org.apache.lucene.util.BytesRef;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Extracted text and language of files by the SHA-256 of their contents, kept in an SQLite
+// database across runs. Copies of a file, and files moved or renamed, are not parsed again.
+// Texts are stored deflated; once they take more than the limit, the least recently used go.
+class TextCache implements Closeable {
+
+    private static final Metrics.Counter hits = Metrics.counter("lucyna_text_cache_hits_total");
+    private static final Metrics.Counter misses = Metrics.counter("lucyna_text_cache_misses_total");
+
+    static class Entry {
+        final String language;
+        private final byte[] text;
+
+        private Entry (String language, byte[] text) {
+            this.language = language;
+            this.text = text;
+        }
+
+        Reader reader () {
+            return new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(text)), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Passes the text through, keeping a deflated copy until it outgrows the limit.
+    class Capture extends FilterReader {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private Writer copy = new OutputStreamWriter(new DeflaterOutputStream(bytes, deflater), StandardCharsets.UTF_8);
+        private boolean complete = false;
+        private byte[] text = null;     // the finished copy
+
+        private Capture (Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read () throws IOException {
+            char[] c = new char[1];
+            return (read(c, 0, 1) == -1) ? -1 : c[0];
+        }
+
+        @Override
+        public int read (char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            if (n == -1) {
+                complete = true;
+            } else if (copy != null) {
+                copy.write(cbuf, off, n);
+                if (bytes.size() > maxEntryBytes)
+                    copy = null;     // too large to be worth keeping
+            }
+            return n;
+        }
+
+        @Override
+        public long skip (long n) throws IOException {
+            copy = null;    // the copy would miss what is skipped
+            return super.skip(n);
+        }
+
+        // Stores the text if it has been read to the end. The analyzer closes the reader once done.
+        void store (BytesRef digest, String language) throws IOException {
+            close();
+            if (text != null)
+                put(digest, language, text);
+        }
+
+        @Override
+        public void close () throws IOException {
+            try {
+                super.close();
+                if (complete && copy != null) {
+                    copy.close();
+                    text = bytes.toByteArray();
+                }
+            } finally {
+                copy = null;
+                deflater.end();
+            }
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Connection db;
+    private long size;      // bytes of all stored texts
+
+    TextCache (Path file, long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 16);
+        try {
+            this.db = DriverManager.getConnection("jdbc:sqlite:" + file);
+            try (Statement s = db.createStatement()) {
+                s.execute("PRAGMA journal_mode = WAL");
+                s.execute("PRAGMA synchronous = NORMAL");
+                s.execute("PRAGMA busy_timeout = 10000");      // the indexer and a command may share it
+                s.execute("CREATE TABLE IF NOT EXISTS texts (digest BLOB PRIMARY KEY, language TEXT NOT NULL, "
+                        + "text BLOB NOT NULL, size INTEGER NOT NULL, used INTEGER NOT NULL)");
+                s.execute("CREATE INDEX IF NOT EXISTS texts_used ON texts (used)");
+                try (ResultSet rs = s.executeQuery("SELECT COALESCE(SUM(size), 0) FROM texts")) {
+                    rs.next();
+                    this.size = rs.getLong(1);
+                }
+            }
+            evict();
+        } catch (SQLException e) {
+            throw new IOException("Text cache " + file + " not opened", e);
+        }
+        Metrics.gauge("lucyna_text_cache_bytes", this::size);
+    }
+
+    static Path defaultPath () {
+        return Paths.get(System.getProperty("user.home") + "/.index-texts.db");
+    }
+
+    private synchronized long size () {
+        return size;
+    }
+
+    // null when the contents were not seen before
+    synchronized Entry get (BytesRef digest) throws IOException {
+        try (PreparedStatement select = db.prepareStatement("SELECT language, text FROM texts WHERE digest = ?")) {
+            select.setBytes(1, BytesRef.deepCopyOf(digest).bytes);
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    misses.inc();
+                    return null;
+                }
+                Entry entry = new Entry(rs.getString(1), rs.getBytes(2));
+                touch(digest);
+                hits.inc();
+                return entry;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Text cache lookup failed", e);
+        }
+    }
+
+    Capture capture (Reader text) {
+        return new Capture(text);
+    }
+
+    private void touch (BytesRef digest) throws SQLException {
+        try (PreparedStatement update = db.prepareStatement("UPDATE texts SET used = ? WHERE digest = ?")) {
+            update.setLong(1, System.currentTimeMillis());
+            update.setBytes(2, BytesRef.deepCopyOf(digest).bytes);
+            update.executeUpdate();
+        }
+    }
+
+    private synchronized void put (BytesRef digest, String language, byte[] text) throws IOException {
+        try (PreparedStatement insert = db.prepareStatement(
+                "INSERT OR IGNORE INTO texts (digest, language, text, size, used) VALUES (?, ?, ?, ?, ?)")) {
+            insert.setBytes(1, BytesRef.deepCopyOf(digest).bytes);
+            insert.setString(2, language);
+            insert.setBytes(3, text);
+            insert.setLong(4, text.length);
+            insert.setLong(5, System.currentTimeMillis());
+            if (insert.executeUpdate() > 0)
+                size += text.length;
+            evict();
+        } catch (SQLException e) {
+            throw new IOException("Text cache update failed", e);
+        }
+    }
+
+    // Drops the least recently used texts until the rest fits the limit.
+    private void evict () throws SQLException {
+        while (size > maxBytes) {
+            List<byte[]> digests = new ArrayList<>();
+            long freed = 0;
+            try (Statement s = db.createStatement();
+                 ResultSet rs = s.executeQuery("SELECT digest, size FROM texts ORDER BY used LIMIT 64")) {
+                while (rs.next() && size - freed > maxBytes) {
+                    digests.add(rs.getBytes(1));
+                    freed += rs.getLong(2);
+                }
+            }
+            if (digests.isEmpty()) {
+                size = 0;       // the table is empty, whatever the sum said
+                return;
+            }
+            try (PreparedStatement delete = db.prepareStatement("DELETE FROM texts WHERE digest = ?")) {
+                for (byte[] digest : digests) {
+                    delete.setBytes(1, digest);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+            size -= freed;
+        }
+    }
+
+    @Override
+    public synchronized void close () throws IOException {
+        try {
+            db.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
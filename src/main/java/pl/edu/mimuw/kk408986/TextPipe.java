@@ -0,0 +1,225 @@
+package pl.edu.mimuw.kk408986;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Hands the text of one document from a parser thread over to the indexing thread in
+// chunks. At most a few chunks are buffered, so memory does not grow with the document.
+// The reading side gives up once the deadline for the whole file has passed.
+class TextPipe extends Reader {
+
+    private static Logger logger = LoggerFactory.getLogger(TextPipe.class);
+
+    private static final Metrics.Counter truncatedFiles = Metrics.counter("lucyna_parse_truncated_total");
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int CHUNKS = 16;
+    private static final char[] END = new char[0];
+
+    // of the producer
+    private static final int NEW = 0;
+    private static final int PARSING = 1;
+    private static final int DONE = 2;
+    private static final int ABANDONED = 3;     // the reader gave up while it was still parsing
+
+    private final Path file;
+    private final long timeoutMillis;
+    private final long deadline;
+    private final long maxChars;
+    private long charsLeft;     // the text is cut off after the limit, and the parser stopped
+    private boolean truncated = false;
+    private boolean ended = false;
+    private final BlockingQueue<char[]> chunks = new ArrayBlockingQueue<>(CHUNKS);
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    private Future<?> producer = null;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private final AtomicInteger stuck;      // abandoned producers still running, shared by all pipes
+
+    private char[] current = null;
+    private int position = 0;
+
+    private final Writer writer = new Writer() {
+        private char[] buffer = new char[CHUNK_SIZE];
+        private int length = 0;
+
+        @Override
+        public void write (char[] cbuf, int off, int len) throws IOException {
+            if (ended) {
+                truncated();
+                throw new IOException("Character limit of " + file + " reached");
+            }
+            if (len > charsLeft) {
+                truncated();
+                len = (int) charsLeft;
+                charsLeft = 0;
+            } else {
+                charsLeft -= len;
+            }
+
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - length);
+                System.arraycopy(cbuf, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == CHUNK_SIZE)
+                    flush();
+            }
+            if (charsLeft == 0)
+                finish();
+        }
+
+        @Override
+        public void flush () throws IOException {
+            if (length > 0) {
+                char[] chunk = (length == CHUNK_SIZE) ? buffer : Arrays.copyOf(buffer, length);
+                put(chunk);
+                buffer = new char[CHUNK_SIZE];
+                length = 0;
+            }
+        }
+
+        @Override
+        public void close () throws IOException {
+            flush();
+        }
+    };
+
+    TextPipe (Path file, long timeoutMillis, long maxChars, AtomicInteger stuck) {
+        this.file = file;
+        this.stuck = stuck;
+        this.timeoutMillis = timeoutMillis;
+        this.maxChars = maxChars;
+        this.charsLeft = maxChars;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // The side the parser writes to.
+    Writer writer () {
+        return writer;
+    }
+
+    // Cancelled when the reading side is closed early.
+    void producedBy (Future<?> producer) {
+        this.producer = producer;
+    }
+
+    // Called by the parser thread before it starts, false if the reader is gone already.
+    boolean started () {
+        return state.compareAndSet(NEW, PARSING);
+    }
+
+    // Called by the parser thread when it is done with the file, however it went.
+    void stopped () {
+        if (!state.compareAndSet(PARSING, DONE))
+            stuck.decrementAndGet();
+    }
+
+    // The rest of the text is not indexed, which is worth knowing.
+    private void truncated () {
+        if (!truncated) {
+            truncated = true;
+            truncatedFiles.inc();
+            logger.warn("{} cut off after {} characters (lucyna.parse.chars)", file, maxChars);
+        }
+    }
+
+    // Called by the parser thread once the text is complete.
+    void finish () throws IOException {
+        if (ended)
+            return;
+        writer.flush();
+        put(END);
+        ended = true;
+    }
+
+    void fail (Throwable t) {
+        if (ended)
+            return;     // most likely stopped at the character limit, the text is complete
+        ended = true;
+        failure = t;
+        chunks.clear();     // the reader will not need what is left, make room for END
+        try {
+            put(END);
+        } catch (IOException ignore) {
+            // reader is gone
+        }
+    }
+
+    private void put (char[] chunk) throws IOException {
+        try {
+            // the reader may have stopped reading, so never block for good
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (closed)
+                    throw new InterruptedIOException("Nobody reads " + file + " any more");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Parsing " + file + " cancelled");
+        }
+    }
+
+    private char[] take () throws IOException {
+        long wait = deadline - System.nanoTime();
+        try {
+            char[] chunk = (wait > 0) ? chunks.poll(wait, TimeUnit.NANOSECONDS) : chunks.poll();
+            if (chunk == null)
+                throw new ContentExtractor.LimitExceededException("timeout", file + " not parsed within " + timeoutMillis + " ms");
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing " + file);
+        }
+    }
+
+    @Override
+    public int read (char[] cbuf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (current == END)
+            return -1;
+
+        if (current == null || position == current.length) {
+            current = take();
+            position = 0;
+            if (current == END) {
+                if (failure instanceof IOException)
+                    throw (IOException) failure;
+                if (failure != null)
+                    // parser bugs, including running out of stack or heap on a hostile file
+                    throw new IOException("Parsing " + file + " failed", failure);
+                return -1;
+            }
+        }
+
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, cbuf, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close () {
+        closed = true;
+        // counted until the parser thread comes back, which it may never do
+        if (state.compareAndSet(PARSING, ABANDONED))
+            stuck.incrementAndGet();
+        else
+            state.compareAndSet(NEW, ABANDONED);
+        if (producer != null)
+            producer.cancel(true);
+        chunks.clear();
+    }
+}
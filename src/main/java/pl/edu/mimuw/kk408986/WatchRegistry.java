@@ -0,0 +1,229 @@
+package pl.edu.mimuw.kk408986;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// The directories watched for events. Trees are registered by a parallel walk. Once the
+// watch budget (lucyna.watch.max or the inotify limit) runs out, the remaining subtrees
+// are not watched but polled: the caller reconciles them with the index periodically.
+// A poll looks at the mtimes of the directories only, an entry created, deleted or renamed
+// changes the mtime of its directory, so only the directories changed since get reconciled.
+class WatchRegistry {
+
+    private static Logger logger = LoggerFactory.getLogger(WatchRegistry.class);
+
+    private final WatchService watcher;
+    private final int maxWatches;
+    private final ForkJoinPool walkers;
+
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    private final Set<Path> polled = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger watches = new AtomicInteger();
+    private volatile boolean exhausted = false;     // the system refused a watch, until one is freed
+
+    // mtimes of the directories of each polled subtree as of its last poll
+    private final Map<Path, Map<Path, Long>> mtimes = new ConcurrentHashMap<>();
+
+    WatchRegistry (WatchService watcher, int maxWatches, int threads) {
+        this.watcher = watcher;
+        this.maxWatches = maxWatches;
+        this.walkers = new ForkJoinPool(threads);
+
+        Metrics.gauge("lucyna_watcher_watched_directories", watched::size);
+        Metrics.gauge("lucyna_watcher_polled_subtrees", polled::size);
+    }
+
+    private class Registration extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        Registration (Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute () {
+            if (!register(dir))
+                return;
+
+            List<Registration> children = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, NOFOLLOW_LINKS))
+                        children.add(new Registration(entry));
+                }
+            } catch (IOException | DirectoryIteratorException ignore) {
+                // unreadable directories are skipped, as by the indexer's walk
+            }
+            invokeAll(children);
+        }
+    }
+
+    // Watches dir, or polls it with its subtree when out of watches. False if dir is not watched.
+    private boolean register (Path dir) {
+        if (watched.contains(dir))
+            return false;
+
+        if (exhausted || watches.incrementAndGet() > maxWatches) {
+            if (!exhausted)
+                watches.decrementAndGet();
+            poll(dir);
+            return false;
+        }
+        try {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            keys.put(key, dir);
+            watched.add(dir);
+            return true;
+        } catch (IOException e) {
+            watches.decrementAndGet();
+            // "User limit of inotify watches reached" on Linux, other errors mean dir is gone
+            if (Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+                if (!exhausted)
+                    logger.warn("No more watches available ({}), polling the remaining directories.", e.getMessage());
+                exhausted = true;
+                poll(dir);
+            }
+            return false;
+        }
+    }
+
+    private void poll (Path dir) {
+        polled.add(dir);
+    }
+
+    // A lookup per ancestor. A sorted set would not do with a floor lookup: "/a/b-c" sorts
+    // between "/a/b" and "/a/b/d", so the floor of a path need not be its ancestor.
+    private boolean insidePolled (Path dir) {
+        for (Path ancestor = dir; ancestor != null; ancestor = ancestor.getParent()) {
+            if (polled.contains(ancestor))
+                return true;
+        }
+        return false;
+    }
+
+    // Registers start and every directory below it. Directories found by the walk cannot lie
+    // in a polled subtree, their parent would not have been watched then, so only start is checked.
+    void registerAll (Path start) {
+        if (!insidePolled(start))
+            walkers.invoke(new Registration(start));
+    }
+
+    Path directory (WatchKey key) {
+        return keys.get(key);
+    }
+
+    void cancelled (WatchKey key) {
+        Path dir = keys.remove(key);
+        if (dir != null) {
+            watched.remove(dir);
+            watches.decrementAndGet();
+            exhausted = false;      // new directories may get the freed watch
+        }
+    }
+
+    boolean isWatched (Path dir) {
+        return watched.contains(dir) || insidePolled(dir);
+    }
+
+    boolean isEmpty () {
+        return keys.isEmpty() && polled.isEmpty();
+    }
+
+    boolean hasPolled () {
+        return !polled.isEmpty();
+    }
+
+    // Polled subtrees that still exist, the others are dropped.
+    List<Path> polledSubtrees () {
+        List<Path> subtrees = new ArrayList<>();
+        for (Path root : polled) {
+            if (Files.isDirectory(root, NOFOLLOW_LINKS)) {
+                subtrees.add(root);
+            } else {
+                polled.remove(root);
+                mtimes.remove(root);
+            }
+        }
+        return subtrees;
+    }
+
+    // Directories of a polled subtree, new ones included, whose mtime changed since its last
+    // poll; the first poll of a subtree gives all of them. Directories gone since are added to
+    // vanished. Costs a stat per known directory, only changed directories get listed.
+    List<Path> changedDirectories (Path subtree, List<Path> vanished) {
+        Map<Path, Long> previous = mtimes.getOrDefault(subtree, Collections.emptyMap());
+        Map<Path, Long> current = new HashMap<>();
+        List<Path> changed = new ArrayList<>();
+
+        Deque<Path> pending = new ArrayDeque<>(previous.keySet());
+        if (previous.isEmpty())
+            pending.add(subtree);
+        Set<Path> seen = new HashSet<>(pending);
+        while (!pending.isEmpty()) {
+            Path dir = pending.remove();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(dir, BasicFileAttributes.class, NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                attrs = null;
+            }
+            if (attrs == null || !attrs.isDirectory()) {
+                if (previous.containsKey(dir))
+                    vanished.add(dir);
+                continue;
+            }
+
+            long mtime = attrs.lastModifiedTime().toMillis();
+            current.put(dir, mtime);
+            Long known = previous.get(dir);
+            if (known != null && known == mtime)
+                continue;
+            changed.add(dir);
+
+            // subdirectories created since show up only in the listing of their parent
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (!seen.contains(entry) && Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+                        seen.add(entry);
+                        pending.add(entry);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException ignore) {
+                // unreadable directories are skipped, as by the indexer's walk
+            }
+        }
+        mtimes.put(subtree, current);
+        return changed;
+    }
+
+    // Remembers the mtimes without reporting changes, before a full reconciliation.
+    void resetDirectories (Path subtree) {
+        changedDirectories(subtree, new ArrayList<>());
+    }
+
+    void logCoverage () {
+        if (polled.isEmpty())
+            logger.info("Watching {} directories.", watched.size());
+        else
+            logger.info("Watching {} directories, polling {} subtrees every {} ms.",
+                    watched.size(), polled.size(), Settings.watchPollMillis());
+    }
+
+    void close () {
+        walkers.shutdownNow();
+    }
+}